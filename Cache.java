@@ -70,15 +70,27 @@ class Cache
 		// post: CacheBlock is written
 		public void writeBytes( int blockId, byte[ ] buffer )
 		{
+			loadBytes( blockId, buffer );
 			this.dirtybit = true;
+		}
+
+		//-----------------------------------------------------------------------------------
+		// Fills this cacheblock with the passed bytes as read from disk, so the block
+		// starts out clean
+		// pre : none
+		// post: CacheBlock holds 'blockId' and is not dirty
+		public void loadBytes( int blockId, byte[ ] buffer )
+		{
+			this.dirtybit = false;
 			this.referencebit = true;
 			this.diskblocknumber = blockId;
-			try
-			{
-				System.arraycopy( buffer, 0, this.blockdata,
-					this.blockdata.length, this.blockdata.length);
-			}
-			catch( ArrayIndexOutOfBoundsException aiobe ){ return; }
+			System.arraycopy( buffer, 0, this.blockdata, 0,
+				Math.min( buffer.length, this.blockdata.length ) );
+		}
+
+		public void setClean( )
+		{
+			this.dirtybit = false;
 		}
 
 	}
@@ -86,6 +98,8 @@ class Cache
 	private Vector<CacheBlock> cached;
 	private int blockscapacity;
 	private int blockbytesize;
+	private long hits = 0;       // reads and writes finding their block
+	private long misses = 0;
 
 	//-------------------------------------------------------------------------------------
 	// Creates a new disk cache. Allocates 'cacheBlocks' number of blocks with 'blockSize'
@@ -110,34 +124,34 @@ class Cache
 	// pre : parameter 'blockId' is > -1
 	// post: Data has been read from the cache to the buffer, or an unused cacheblock now
 	//       contains the data from its counterpart on the disk
-	public boolean read( int blockId, byte[ ] buffer )
+	public synchronized boolean read( int blockId, byte[ ] buffer )
 	{
-		blockId = ( blockId < 0 ? -1 : blockId );
+		if( blockId < 0 )
+			return false;
+
 		CacheBlock readfrom = getBlock( blockId );
 
 		if( readfrom == null )
 		{
-			boolean read = false;
+			this.misses++;
 			SysLib.rawread( blockId, buffer );
-			for ( int i = 0; i < this.cached.size( ); i++ )
-				if ( !this.cached.elementAt( i ).isDirty( ) )
-				{
-					this.cached.elementAt( i ).writeBytes( blockId, buffer );
-					read = true;
-				}
-
-			if( !read )
+			CacheBlock unused = getUnusedBlock( );
+			if( unused != null )
+				unused.loadBytes( blockId, buffer );
+			else
+			{
 				replaceWith( blockId, buffer );
+				getBlock( blockId ).setClean( );
+			}
 		}
 		else
-			try
-			{
-				readfrom.setReferenced( true );
-				System.arraycopy( readfrom.getBytes( ), 0, buffer,
-										buffer.length, buffer.length);
-			}
-			catch( ArrayIndexOutOfBoundsException aiobe ){ return false; }
-			
+		{
+			this.hits++;
+			readfrom.setReferenced( true );
+			System.arraycopy( readfrom.getBytes( ), 0, buffer, 0,
+				Math.min( buffer.length, this.blockbytesize ) );
+		}
+
 		return true;
 	}
 
@@ -147,51 +161,107 @@ class Cache
 	// this operation using second chance algorithm
 	// pre : parameter 'blockId' is > -1
 	// post: Data has been written to the cache from the buffer, or to an unused cacheblock
-	public boolean write( int blockId, byte[ ] buffer )
+	public synchronized boolean write( int blockId, byte[ ] buffer )
 	{
-		blockId = ( blockId < 0 ? -1 : blockId );
+		if( blockId < 0 )
+			return false;
+
 		CacheBlock writeto = getBlock( blockId );
+		if( writeto == null )
+		{
+			this.misses++;
+			writeto = getUnusedBlock( );
+		}
+		else
+			this.hits++;
 
-		if( writeto != null && !writeto.isDirty( ) )
+		if( writeto != null )
 			writeto.writeBytes( blockId, buffer );
 		else
-			try
-			{
-				boolean wrote = false;
-				for( int i = 0; i < this.cached.size( ); i++ )
-					if ( !this.cached.elementAt( i ).isDirty( ) )
-					{
-						this.cached.elementAt( i ).writeBytes( blockId, buffer );
-						wrote = true;
-					}
+			replaceWith( blockId, buffer );
 
-				if( !wrote )
-					replaceWith( blockId, buffer );
+		return true;
+	}
 
-			}
-			catch( NullPointerException npe ){ return false; }
-			catch( ArrayIndexOutOfBoundsException aiobe ) { return false; }	
+	//-------------------------------------------------------------------------------------
+	// Copies cached block 'blockId' into 'buffer' if it has been written to the cache and
+	// not yet to disk, so that a read made around the cache still sees the write
+	// pre : parameter 'blockId' is > -1
+	// post: Returns true if 'buffer' holds the dirty cached block, false if the disk has
+	//       the latest copy of the block
+	public synchronized boolean readDirty( int blockId, byte[ ] buffer )
+	{
+		CacheBlock readfrom = getBlock( blockId );
+		if( readfrom == null || !readfrom.isDirty( ) )
+			return false;
 
+		System.arraycopy( readfrom.blockdata, 0, buffer, 0,
+			Math.min( buffer.length, this.blockbytesize ) );
 		return true;
 	}
 
+	//-------------------------------------------------------------------------------------
+	// Brings the cached copy of block 'blockId', if there is one, up to date with a write
+	// made around the cache: 'buffer' has just been written to disk, so the copy takes
+	// its bytes and is clean
+	// pre : parameter 'blockId' is > -1
+	// post: No cached copy of 'blockId' differs from the disk
+	public synchronized void written( int blockId, byte[ ] buffer )
+	{
+		CacheBlock writeto = getBlock( blockId );
+		if( writeto == null )
+			return;
+
+		if( writeto.blockdata != buffer )     // not one of our own write backs
+			System.arraycopy( buffer, 0, writeto.blockdata, 0,
+				Math.min( buffer.length, this.blockbytesize ) );
+		writeto.setClean( );
+	}
+
+	//-------------------------------------------------------------------------------------
+	// The number of reads and writes that found their block in the cache, and the number
+	// that did not
+	public synchronized long getHits( )
+	{
+		return this.hits;
+	}
+
+	public synchronized long getMisses( )
+	{
+		return this.misses;
+	}
+
+	//-------------------------------------------------------------------------------------
+	// The number of cache blocks holding a disk block
+	public synchronized int occupancy( )
+	{
+		int used = 0;
+		for( int i = 0; i < this.cached.size( ); i++ )
+			if( this.cached.elementAt( i ).getBlockId( ) != -1 )
+				used++;
+		return used;
+	}
+
 	//-------------------------------------------------------------------------------------
 	// Write back all used/dirty blocks to the disk. Maintain clean/unused blocks
 	// pre : none
 	// post: All used/dirty blocks are written back to the disk
-	public void sync( )
+	public synchronized void sync( )
 	{
 		for( int i = 0; i < this.cached.size( ); i++ )
 			if ( this.cached.elementAt( i ).isDirty( ) )
+			{
 				SysLib.rawwrite( this.cached.elementAt( i ).getBlockId( ),
 					this.cached.elementAt( i ).getBytes( ) );
+				this.cached.elementAt( i ).setClean( );
+			}
 	}
 
 	//-------------------------------------------------------------------------------------
 	// Write back all used/dirty blocks to the disk. Invalidates all cached blocks
 	// pre : none
 	// post: All used/dirty blocks are written back to the disk
-	public void flush( )
+	public synchronized void flush( )
 	{
 		for( int i = 0; i < this.cached.size( ); i++ )
 		{
@@ -248,6 +318,26 @@ class Cache
 		return check;
 	}
 
+	//-------------------------------------------------------------------------------------
+	// Returns an invalid cache block if there is one, otherwise any clean block. Returns
+	// null if every block is dirty
+	// pre : none
+	// post: A block that can be overwritten without a write back is returned, or null
+	private CacheBlock getUnusedBlock( )
+	{
+		CacheBlock clean = null;
+		for( int i = 0; i < this.cached.size( ); i++ )
+		{
+			CacheBlock check = this.cached.elementAt( i );
+			if( check.getBlockId( ) == -1 )
+				return check;
+			if( clean == null && !check.isDirty( ) )
+				clean = check;
+		}
+
+		return clean;
+	}
+
 	//-------------------------------------------------------------------------------------
 	// Returns the block in the cache whose id is passed. If no such block exists, null
 	// pre : blockId is > -1
@@ -0,0 +1,241 @@
+// Console, where threadOS sends what threads write to STDOUT and STDERR.
+// Each thread collects its output in a line buffer of its own, kept in
+// its TCB, and hands over only whole lines. Lines go into a bounded
+// queue, and a single writer thread takes them off in batches and prints
+// each batch with one call per stream, so threads writing at once do not
+// take turns on the PrintStream lock and a thread writing faster than
+// the console can print is made to wait for room in the queue.
+//
+// A thread's output comes out in the order it wrote it, across the two
+// streams: writing to STDERR first hands over what it had for STDOUT,
+// and the other way around. A thread's last partial line is handed over
+// when it exits or reads from STDIN, and a read also waits for the
+// console to catch up, so a prompt is on the screen before the read.
+//
+// Console output can also be appended to a threadOS file, see the
+// mirror= boot option. The file is opened for each batch, so it can be
+// read while threads are writing. The writer thread never waits for it:
+// while another thread has the file open, output for it is kept and
+// appended once the file is free, the oldest dropped past MIRROR_MAX
+// characters. Writes past the largest size a file can have are dropped
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+public class Console extends Thread
+{
+	public final static int DEFAULT_CAPACITY = 1024;   // lines queued
+	private final static int LINE_MAX = 4096;  // longest partial line kept
+	private final static long EXIT_DRAIN_MILLIS = 1000;
+	private final static int MIRROR_MAX = 64 * 1024; // kept for a busy mirror
+	private final static long MIRROR_RETRY_MILLIS = 100;
+
+	private final PrintStream out;
+	private final PrintStream err;
+	private final ArrayBlockingQueue<Chunk> queue;
+	private final int capacity;
+	private volatile FileSystem fs = null;     // for the mirror file
+	private volatile String mirror = null;
+
+	private final AtomicLong queued = new AtomicLong( ); // chunks ever
+	private long written = 0;   // of those, chunks printed
+
+	// text for one stream, as queued
+	private static class Chunk
+	{
+		final int stream;
+		final String text;
+
+		Chunk( int stream, String text )
+		{
+			this.stream = stream;
+			this.text = text;
+		}
+	}
+
+	// A thread's output not yet handed to the console, all of it for
+	// one stream
+	public static class Line
+	{
+		private final StringBuilder text = new StringBuilder( );
+		private int stream = Kernel.STDOUT;
+	}
+
+	// Makes a console printing to 'out' and 'err', with room for
+	// 'capacity' lines waiting to be printed
+	public Console( PrintStream out, PrintStream err, int capacity )
+	{
+		this.out = out;
+		this.err = err;
+		this.capacity = ( capacity < 1 ? 1 : capacity );
+		this.queue = new ArrayBlockingQueue<Chunk>( this.capacity );
+		setName( "threadOS console" );
+		setDaemon( true );
+
+		// what was written just before the JVM exits is printed too
+		Runtime.getRuntime( ).addShutdownHook( new Thread( )
+		{
+			public void run( )
+			{
+				drain( EXIT_DRAIN_MILLIS );
+			}
+		} );
+	}
+
+	// Copies console output from now on to the end of file 'fileName'
+	// of 'fs', or stops copying if 'fileName' is null
+	public void mirror( FileSystem fs, String fileName )
+	{
+		this.fs = fs;
+		this.mirror = fileName;
+	}
+
+	// Writes 's' to 'stream', STDOUT or STDERR, for the thread owning
+	// 'tcb'. Only whole lines are handed over unless 'tcb' is null, that
+	// is, the writer is not a user thread
+	public void write( TCB tcb, int stream, String s )
+	{
+		if( tcb == null )
+		{
+			enqueue( stream, s );
+			return;
+		}
+
+		Line line = tcb.getConsoleLine( );
+		if( line.stream != stream )
+			flush( tcb );
+		line.stream = stream;
+		line.text.append( s );
+
+		if( line.text.length( ) >= LINE_MAX )
+			flush( tcb );
+		else if( s.indexOf( '\n' ) >= 0 )
+		{
+			int end = line.text.lastIndexOf( "\n" ) + 1;
+			enqueue( stream, line.text.substring( 0, end ) );
+			line.text.delete( 0, end );
+		}
+	}
+
+	// Hands over whatever the thread owning 'tcb' has not
+	public void flush( TCB tcb )
+	{
+		Line line = tcb.getConsoleLine( );
+		if( line.text.length( ) == 0 )
+			return;
+		enqueue( line.stream, line.text.toString( ) );
+		line.text.setLength( 0 );
+	}
+
+	// Waits until everything handed over so far has been printed, or
+	// 'millis' milliseconds have passed if 'millis' > 0
+	public synchronized void drain( long millis )
+	{
+		long target = queued.get( );
+		long until = System.currentTimeMillis( ) + millis;
+		while( written < target )
+		{
+			long wait = 0;
+			if( millis > 0 )
+			{
+				wait = until - System.currentTimeMillis( );
+				if( wait <= 0 )
+					return;
+			}
+			try { wait( wait ); }
+			catch( InterruptedException ie ) { return; }
+		}
+	}
+
+	// Prints the queued lines a batch at a time, in queue order,
+	// flushing a stream before switching to the other
+	public void run( )
+	{
+		ArrayList<Chunk> batch = new ArrayList<Chunk>( capacity );
+		StringBuilder text = new StringBuilder( );
+		StringBuilder all = new StringBuilder( );  // not yet mirrored
+		while( true )
+		{
+			try
+			{
+				if( all.length( ) == 0 )
+					batch.add( queue.take( ) );
+				else
+				{
+					// the mirror file was busy, so try it again soon
+					// even if nothing more is written
+					Chunk c = queue.poll( MIRROR_RETRY_MILLIS,
+							      TimeUnit.MILLISECONDS );
+					if( c != null )
+						batch.add( c );
+				}
+			}
+			catch( InterruptedException ie )
+			{
+				continue;
+			}
+			queue.drainTo( batch );
+
+			String fileName = mirror;
+			for( int i = 0; i < batch.size( ); i++ )
+			{
+				Chunk c = batch.get( i );
+				text.append( c.text );
+				if( fileName != null )
+					all.append( c.text );
+				if( i + 1 == batch.size( )
+				    || batch.get( i + 1 ).stream != c.stream )
+				{
+					PrintStream ps
+						= ( c.stream == Kernel.STDERR ? err : out );
+					ps.print( text );
+					ps.flush( );
+					text.setLength( 0 );
+				}
+			}
+			if( fileName == null || append( fileName, all.toString( ) ) )
+				all.setLength( 0 );
+			else if( all.length( ) > MIRROR_MAX )
+				all.delete( 0, all.length( ) - MIRROR_MAX );
+
+			synchronized( this )
+			{
+				written += batch.size( );
+				notifyAll( );
+			}
+			batch.clear( );
+		}
+	}
+
+	// Queues 's', waiting for room if the queue is full
+	private void enqueue( int stream, String s )
+	{
+		if( s.length( ) == 0 )
+			return;
+
+		queued.incrementAndGet( );
+		while( true )
+		{
+			try
+			{
+				queue.put( new Chunk( stream, s ) );
+				return;
+			}
+			catch( InterruptedException ie ) { }
+		}
+	}
+
+	// Appends 's' to file 'fileName', unless another thread has the file
+	// open: the writer thread must not wait for it, or every thread
+	// writing to the console would wait too. Returns false if it did not
+	private boolean append( String fileName, String s )
+	{
+		FileTableEntry fEnt = fs.open( fileName, "a", false );
+		if( fEnt == null )
+			return false;
+		fs.write( fEnt, s.getBytes( ) );
+		fs.close( fEnt );
+		return true;
+	}
+}
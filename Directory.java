@@ -11,10 +11,12 @@ public class Directory
 
 	// Not written to disk
 	private int maxInumber;
+	private boolean held[ ];      // freed entries whose inode is not yet released
 
 	public Directory( int maxInumber )
 	{
 		this.maxInumber = maxInumber;
+		this.held = new boolean[ maxInumber ];
 		this.fsizes = new int[ maxInumber ];
 		for( int i = 0; i < maxInumber; i++ )
 			fsizes[ i ] = 0;
@@ -36,8 +38,8 @@ public class Directory
 
 			for( int i = 1; i < maxInumber; i++ )
 			for( int j = 0; j < maxChars; j++ )
-			this.fnames[ i ][ j ] =
-			( char )SysLib.bytes2short( data, charsstart + ( i * 2 ) );
+			this.fnames[ i ][ j ] = ( char )SysLib.bytes2short( data,
+				charsstart + ( ( i * maxChars ) + j ) * 2 );
 		}
 		catch( ArrayIndexOutOfBoundsException aiobe ) { return -1; }
 
@@ -58,7 +60,7 @@ public class Directory
 		for( int i = 0; i < maxInumber; i++ )
 		for( int j = 0; j < maxChars; j++ )
 		SysLib.short2bytes( ( short )this.fnames[ i ][ j ],
-			 directory, charsstart + ( i * 2 ) );
+			 directory, charsstart + ( ( i * maxChars ) + j ) * 2 );
 
 		return directory;
 	}
@@ -68,10 +70,10 @@ public class Directory
 	public short ialloc( String filename )
 	{
 		for( int i = 0; i < maxInumber; i++ )
-			if( fnames[ i ][ 0 ] == 0 )
+			if( fnames[ i ][ 0 ] == 0 && !held[ i ] )
 			{
-				fnames[ i ] = filename.toCharArray( );
-				fsizes[ i ] = filename.length( );
+				fsizes[ i ] = Math.min( filename.length( ), maxChars );
+				filename.getChars( 0, fsizes[ i ], fnames[ i ], 0 );
 				
 				return ( short )i;
 			}
@@ -84,7 +86,7 @@ public class Directory
 	{
 		try
 		{
-			for (int i = 0; i < fsizes[ iNumber ]; i++)
+			for (int i = 0; i < fnames[ iNumber ].length; i++)
 				fnames[ iNumber ][ i ] = 0;
 
 			fsizes[ iNumber ] = 0;
@@ -95,6 +97,57 @@ public class Directory
 		return true;
 	}
 
+	// Keeps a freed iNumber from being allocated again while the inode
+	// of the deleted file is still in use, or lets it go again
+	public void ihold( short iNumber, boolean hold )
+	{
+		held[ iNumber ] = hold;
+	}
+
+	// Whether a file name is still bound to the given iNumber
+	public boolean iused( short iNumber )
+	{
+		return ( iNumber >= 0 && iNumber < maxInumber && fsizes[ iNumber ] > 0 );
+	}
+
+	// Returns the file name bound to iNumber, or null if the entry is free
+	public String iname( short iNumber )
+	{
+		if( !iused( iNumber ) )
+			return null;
+
+		return new String( fnames[ iNumber ], 0,
+			Math.min( fsizes[ iNumber ], fnames[ iNumber ].length ) );
+	}
+
+	// Checks that an entry is well formed: its recorded size fits a
+	// name, every character up to that size is printable and every
+	// character after it is zero
+	public boolean ivalid( short iNumber )
+	{
+		if( iNumber < 0 || iNumber >= maxInumber )
+			return false;
+
+		int size = fsizes[ iNumber ];
+		if( size < 0 || size > fnames[ iNumber ].length )
+			return false;
+
+		for( int i = 0; i < fnames[ iNumber ].length; i++ )
+		{
+			char c = fnames[ iNumber ][ i ];
+			if( i < size ? ( c < ' ' || c > '~' ) : c != 0 )
+				return false;
+		}
+
+		return true;
+	}
+
+	// The number of entries, used and free, this directory holds
+	public int maxInumber( )
+	{
+		return maxInumber;
+	}
+
 	//return index of directory entry of given filename
 	public short namei( String filename )
 	{
@@ -0,0 +1,91 @@
+//------------------------------------------------------------------
+// class EdfPolicy, earliest deadline first. A latency sensitive
+// program declares a relative deadline with SysLib.deadline( ); each
+// time it becomes runnable, and each time it runs past its deadline,
+// it is given a new absolute deadline that far in the future, and the
+// runnable thread with the earliest one always runs. Threads with no
+// deadline run only when no deadline thread is runnable, in FIFO order
+//------------------------------------------------------------------
+import java.util.*;
+public class EdfPolicy implements SchedulingPolicy
+{
+  private TreeSet<TCB> queue;
+  private long arrivals;        // FIFO order among equal deadlines
+  private int timeSlice;
+
+  public EdfPolicy( int quantum )
+  {
+    this.timeSlice = quantum;
+    this.arrivals = 0;
+    this.queue = new TreeSet<TCB>( new Comparator<TCB>( ) {
+      public int compare( TCB a, TCB b )
+      {
+        if( a.getAbsoluteDeadline( ) != b.getAbsoluteDeadline( ) )
+          return ( a.getAbsoluteDeadline( ) < b.getAbsoluteDeadline( ) ? -1 : 1 );
+        if( a.getArrival( ) != b.getArrival( ) )
+          return ( a.getArrival( ) < b.getArrival( ) ? -1 : 1 );
+        return a.getTid( ) - b.getTid( );
+      }
+    } );
+  }
+
+  public void add( TCB thread )
+  {
+    release( thread );
+    queue.add( thread );
+  }
+
+  public void remove( TCB thread )
+  {
+    queue.remove( thread );
+  }
+
+  public TCB next( )
+  {
+    return ( queue.isEmpty( ) ? null : queue.first( ) );
+  }
+
+  public int quantum( TCB thread )
+  {
+    return timeSlice / 2;
+  }
+
+  //----------------------------------------------------------------
+  // A thread keeps its deadline until it misses it; then it starts a
+  // new period. A thread with no deadline goes to the back of the line
+  public void expired( TCB thread, long ran )
+  {
+    if( thread.getDeadline( ) > 0
+        && thread.getAbsoluteDeadline( ) > System.currentTimeMillis( ) )
+      return;
+
+    queue.remove( thread );
+    release( thread );
+    queue.add( thread );
+  }
+
+  public TCB takeWaiting( TCB running )
+  {
+    for( TCB t : queue.descendingSet( ) )
+      if( t != running )
+      {
+        queue.remove( t );
+        return t;
+      }
+    return null;
+  }
+
+  public int size( )
+  {
+    return queue.size( );
+  }
+
+  // Sets the thread's next absolute deadline and arrival order
+  private void release( TCB thread )
+  {
+    long relative = thread.getDeadline( );
+    thread.setAbsoluteDeadline( relative > 0 ?
+      System.currentTimeMillis( ) + relative : Long.MAX_VALUE );
+    thread.setArrival( arrivals++ );
+  }
+}
@@ -0,0 +1,85 @@
+//------------------------------------------------------------------
+// class FairSharePolicy, a completely fair scheduler. Threads are kept
+// in a balanced tree ordered by virtual runtime, the CPU time they have
+// had, and the one that has had the least runs next. A slice is the
+// quantum shared among the threads, but never less than an eighth of
+// it, so many threads do not turn into constant switching
+//------------------------------------------------------------------
+import java.util.*;
+public class FairSharePolicy implements SchedulingPolicy
+{
+  private TreeSet<TCB> tree;
+  private long minVruntime;     // never decreases
+  private int timeSlice;
+
+  public FairSharePolicy( int quantum )
+  {
+    this.timeSlice = quantum;
+    this.minVruntime = 0;
+    this.tree = new TreeSet<TCB>( new Comparator<TCB>( ) {
+      public int compare( TCB a, TCB b )
+      {
+        if( a.getVruntime( ) != b.getVruntime( ) )
+          return ( a.getVruntime( ) < b.getVruntime( ) ? -1 : 1 );
+        return a.getTid( ) - b.getTid( );
+      }
+    } );
+  }
+
+  //----------------------------------------------------------------
+  // A thread arriving here starts no further behind than the thread
+  // that has had the least CPU, so a new or migrated thread cannot
+  // claim a backlog of runtime it never waited for
+  public void add( TCB thread )
+  {
+    if( thread.getVruntime( ) < minVruntime )
+      thread.setVruntime( minVruntime );
+    tree.add( thread );
+  }
+
+  public void remove( TCB thread )
+  {
+    tree.remove( thread );
+  }
+
+  public TCB next( )
+  {
+    return ( tree.isEmpty( ) ? null : tree.first( ) );
+  }
+
+  public int quantum( TCB thread )
+  {
+    int share = timeSlice / Math.max( 1, tree.size( ) );
+    return Math.max( share, timeSlice / 8 );
+  }
+
+  //----------------------------------------------------------------
+  // Charges the slice to the thread and puts it back in order. The
+  // key can only change while the thread is out of the tree
+  public void expired( TCB thread, long ran )
+  {
+    tree.remove( thread );
+    thread.setVruntime( thread.getVruntime( ) + ran );
+    tree.add( thread );
+    minVruntime = Math.max( minVruntime, tree.first( ).getVruntime( ) );
+  }
+
+  //----------------------------------------------------------------
+  // Gives away the thread that has had the most CPU, the one that
+  // would wait longest here
+  public TCB takeWaiting( TCB running )
+  {
+    for( TCB t : tree.descendingSet( ) )
+      if( t != running )
+      {
+        tree.remove( t );
+        return t;
+      }
+    return null;
+  }
+
+  public int size( )
+  {
+    return tree.size( );
+  }
+}
@@ -1,17 +1,25 @@
-// The main data wrapper for the file system
+// The main data wrapper for the file system. Pipes share descriptors
+// with files, so reads, writes, dups and closes of a pipe end come
+// through here too and are handed to its Pipe
 // Source written by Brad B Baker and Joseph Kniest
+import java.util.HashMap;
+import java.util.Vector;
 public class FileSystem
 {
 	private SuperBlock superBlock;
 	private Directory dir;
 	private FileTable fileTable;
 
+	// The pages of every mapped file, by inode number
+	private final HashMap<Short, MappedFile.Pages> mapped
+		= new HashMap<Short, MappedFile.Pages>( );
+
 	// Constructs a new filesystem, initializing a superblock
 	// directory and filetable onto main memory
 	public FileSystem( int diskBlocks )
 	{
 		this.superBlock = new SuperBlock( diskBlocks );
-		this.dir = new Directory( this.superBlock.inodeBlocks( ) * 16 );
+		this.dir = new Directory( this.superBlock.inodeBlocks( ) * Inode.inodesPerBlock( ) );
 		fileTable = new FileTable( dir );
 		FileTableEntry dirfEnt = open( "/", "r" );
 		int dirsize = fsize( dirfEnt );
@@ -31,9 +39,17 @@ public class FileSystem
 	//       and is a valid file mode
 	// post: The value of the calling thread's next file descriptor is returned
 	public FileTableEntry open( String filename, String mode )
+	{
+		return open( filename, mode, true );
+	}
+
+	// Opens the file as open( filename, mode ) does, but if 'wait' is
+	// false returns null rather than waiting for another thread to
+	// finish with it
+	public FileTableEntry open( String filename, String mode, boolean wait )
 	{
 
-		FileTableEntry fEnt = fileTable.falloc( filename, mode );
+		FileTableEntry fEnt = fileTable.falloc( filename, mode, wait );
 		if( mode.equals( "w" ) )
 			if( !deallocateAllBlocks( fEnt ) )
 				return null;
@@ -42,7 +58,8 @@ public class FileSystem
 	}
 
 	// Calling thread reads as much data as it can from the file
-	// specified by the table entry into the buffer
+	// specified by the table entry into the buffer. Inline files and
+	// blocks still waiting on delayed allocation are read from memory
 	// pre : Parameters 'fEnt' and 'buffer' are not null
 	// post: Returns the number of bytes read from the file into
 	// the buffer, or -1 if there was any error in the operation 
@@ -50,192 +67,182 @@ public class FileSystem
 	{
 		if( fEnt == null )
 			return -1;
+		if( fEnt instanceof PipeEnd )
+			return ( ( PipeEnd )fEnt ).read( buffer );
 
-		int curblk = fEnt.inode.findTargetBlock( fEnt.seekPtr );
-		if( curblk == -1 )
-			return -1;
-
-		int remainingbufferspace = buffer.length;
 		int readbytes = 0;
-		byte[ ] inodeBlock = new byte[ 512 ];
-
-		int currPos = fEnt.seekPtr % 512;
-
-		 // number of bytes to be copied over this time
-		int limit = ( 512 - currPos < remainingbufferspace
-		? 512 - currPos : remainingbufferspace );
-
-		SysLib.rawread( curblk, inodeBlock );
-
-		//Eof?
-		limit = ( limit >= fEnt.inode.length
-		? fEnt.inode.length : limit );
-
-		// Read the last bytes in this block
-		for( int i = 0; i < limit; i++ )
-			buffer[ i ] = inodeBlock[ currPos ];
-
-		remainingbufferspace -= limit;
-		readbytes += limit;
-		fEnt.seekPtr += limit;
-
-		// Eof was hit, return read bytes
-		if( limit == fEnt.inode.length )
-			return readbytes;
+		byte[ ] inodeBlock = null;      // only needed to go to disk
+		int available = fEnt.inode.length - fEnt.seekPtr;
+		int limit = ( buffer.length < available ? buffer.length : available );
 
-		// Writing full blocks
-		while( remainingbufferspace > 512
-			&& !( ( fEnt.seekPtr + 512 ) >= fEnt.inode.length ) )
+		if( fEnt.inode.inline == 1 )
 		{
-			curblk = fEnt.inode.findTargetBlock( fEnt.seekPtr );
-			if( curblk == -1 )
-				return readbytes;
-
-			SysLib.rawread( curblk, inodeBlock );
-			for( int i = 0; i < 512; i++ )
-				buffer[ i + readbytes ] = inodeBlock[ i ];
-
-			remainingbufferspace -= 512;
-			readbytes += 512;
-			fEnt.seekPtr += 512;
+			// the data came in with the inode, no block to read
+			if( limit <= 0 )
+				return 0;
+			System.arraycopy( fEnt.inode.data, fEnt.seekPtr, buffer, 0, limit );
+			fEnt.seekPtr += limit;
+			return limit;
 		}
 
-		// Get last block
-		curblk = fEnt.inode.findTargetBlock( fEnt.seekPtr );
-			if( curblk == -1 )
-				return readbytes;
-
-		// Do last bytes in next block
-		SysLib.rawread( curblk, inodeBlock );
+		while( readbytes < limit )
+		{
+			int index = fEnt.seekPtr / 512;
+			int currPos = fEnt.seekPtr % 512;
+			int chunk = Math.min( 512 - currPos, limit - readbytes );
 
-		//Eof?
-		limit = ( limit >= fEnt.inode.length
-		? fEnt.inode.length : limit );
+			byte[ ] data = fEnt.inode.delayed[ index ];
+			if( data == null )
+			{
+				short curblk = fEnt.inode.findTargetBlock( fEnt.seekPtr );
+				if( curblk == -1 )
+					return readbytes;
 
-		for( int i = 0; i < limit; i++ )
-			buffer[ i + readbytes ] = inodeBlock[ i ];
+				if( inodeBlock == null )
+					inodeBlock = new byte[ 512 ];
+				SysLib.rawread( curblk, inodeBlock );
+				data = inodeBlock;
+			}
 
-		readbytes += limit;
-		fEnt.seekPtr += limit;
+			System.arraycopy( data, currPos, buffer, readbytes, chunk );
+			readbytes += chunk;
+			fEnt.seekPtr += chunk;
+		}
 
 		return readbytes;
 	}
 
-	// Calling thread writes as much data as it can from the file
-	// specified by the table entry into the buffer. Additional
-	// blocks are allocated to the inode as needed
+	// Calling thread writes as much data as it can from the buffer
+	// into the file specified by the table entry. Blocks the file
+	// already owns are written through to disk. Data past the end of
+	// those blocks stays in memory unallocated until the file is
+	// written back on close or sync, see writeBack( ). Small files
+	// keep their data inline in the inode until they outgrow it
 	// pre : Parameters 'fEnt' and 'buffer' are not null
 	// post: Returns the number of bytes written to the file from
 	// the buffer, or -1 if there was any error in the operation
 	public int write( FileTableEntry fEnt, byte[ ] buffer )
 	{
-
 		if( fEnt == null ) 
 			return -1;
+		if( fEnt instanceof PipeEnd )
+			return ( ( PipeEnd )fEnt ).write( buffer );
 
-		int remainingbytes = buffer.length;
 		int writtenbytes = 0;
-		byte[ ] inodeBlock = new byte[ 512 ];
-		// Find the starting block
-		int curblk = fEnt.inode.findTargetBlock( fEnt.seekPtr );
-		// Allocate a new block for the inode and reset curblock
-		if( curblk == -1 )
-		{
-			fEnt.inode.addBlock( ( short )this.superBlock.getFreeBlock( ) );
-			curblk = fEnt.inode.findTargetBlock( fEnt.seekPtr );
-		}
-
-		// copy buffer to the end of the block, or to the end of buffer	
-		int currPos = fEnt.seekPtr % 512; 
-		// number of bytes to be copied over this time
-		int limit = ( 512 - currPos < remainingbytes 
-		? 512 - currPos : remainingbytes );
-
-		SysLib.rawread( curblk, inodeBlock );
-		for( int i = 0; i < limit; i++ )
-			inodeBlock[ currPos + i ] = buffer[ i ];
-
-		// update seek ptr
-		fEnt.seekPtr += limit;
+		byte[ ] inodeBlock = null;      // only needed to go to disk
 
-		// update number of remainingbytes
-		remainingbytes -= limit;
-
-		// update number of written bytes
-		writtenbytes += limit;
+		if( fEnt.inode.inline == 1 )
+		{
+			if( fEnt.seekPtr + buffer.length <= Inode.inlineSize )
+			{
+				System.arraycopy( buffer, 0, fEnt.inode.data,
+					fEnt.seekPtr, buffer.length );
+				fEnt.seekPtr += buffer.length;
+				if( fEnt.seekPtr > fEnt.inode.length )
+					fEnt.inode.length = fEnt.seekPtr;
+				return buffer.length;
+			}
 
-		// write the updated block to disk
-		SysLib.rawwrite( curblk, inodeBlock );
+			// outgrew the inode, move to block storage
+			fEnt.inode.promote( );
+		}
 
-		// write the middle blocks
-		while( remainingbytes > 512 )
+		while( writtenbytes < buffer.length )
 		{
+			int index = fEnt.seekPtr / 512;
+			if( index >= Inode.maxBlocks( ) )
+				break;
+
+			int currPos = fEnt.seekPtr % 512;
+			int chunk = Math.min( 512 - currPos, buffer.length - writtenbytes );
+			short curblk = fEnt.inode.findTargetBlock( fEnt.seekPtr );
 
-			curblk = fEnt.inode.findTargetBlock( fEnt.seekPtr );
-			// Allocate a new block for the inode and reset curblock
 			if( curblk == -1 )
 			{
-				fEnt.inode.addBlock( ( short )this.superBlock.getFreeBlock( ) );
-				curblk = fEnt.inode.findTargetBlock( fEnt.seekPtr );
+				// no block yet, hold the data until write back
+				if( fEnt.inode.delayed[ index ] == null )
+					fEnt.inode.delayed[ index ] = new byte[ 512 ];
 
-				// no more blocks for the inode?
-				if( curblk == -1 )
-					return -1;
+				System.arraycopy( buffer, writtenbytes,
+					fEnt.inode.delayed[ index ], currPos, chunk );
+			}
+			else
+			{
+				// only read the old block if part of it survives
+				if( inodeBlock == null )
+					inodeBlock = new byte[ 512 ];
+				if( chunk < 512 )
+					SysLib.rawread( curblk, inodeBlock );
+
+				System.arraycopy( buffer, writtenbytes, inodeBlock, currPos, chunk );
+				SysLib.rawwrite( curblk, inodeBlock );
 			}
 
-			// write next whole 512 bytes from buffer to block
-			for( int i = 0; i < 512; i++ )
-				inodeBlock[ i ] = buffer[ i + ( buffer.length - remainingbytes ) ];
+			writtenbytes += chunk;
+			fEnt.seekPtr += chunk;
+		}
 
-			// update seek ptr	
-			fEnt.seekPtr += 512;
+		fEnt.inode.length = ( fEnt.seekPtr 
+		> fEnt.inode.length ? fEnt.seekPtr : fEnt.inode.length );
 
-			// update number of remainingbytes
-			remainingbytes -= 512;
+		return ( writtenbytes == 0 && buffer.length > 0 ? -1 : writtenbytes );
+	}
 
-			// update number of written bytes
-			writtenbytes += 512;
+	// Gives the delayed blocks of the file disk blocks and writes them
+	// out. All of them are taken from the free list together, once the
+	// final size of the file is known. A file that has been deleted in
+	// the meantime just drops its delayed blocks, so it never touches
+	// the free list at all
+	// pre : none
+	// post: The file has no delayed blocks left, 0 is returned, or -1
+	//       if the disk ran out of free blocks
+	public int writeBack( FileTableEntry fEnt )
+	{
+		if( fEnt == null )
+			return -1;
 
-			// write the updated block to disk
-			SysLib.rawwrite( curblk, inodeBlock );
+		Inode inode = fEnt.inode;
+		int pending = 0;
+		for( int i = 0; i < inode.delayed.length; i++ )
+			if( inode.delayed[ i ] != null )
+				pending++;
 
-		}
+		if( pending == 0 )
+			return 0;
 
-		curblk = fEnt.inode.findTargetBlock( fEnt.seekPtr );
-		// Allocate a new block for the inode and reset curblock
-		if( curblk == -1 )
+		if( !this.dir.iused( fEnt.iNumber ) )
 		{
-			fEnt.inode.addBlock( ( short )this.superBlock.getFreeBlock( ) );
-			curblk = fEnt.inode.findTargetBlock( fEnt.seekPtr );
+			inode.dropDelayed( );
+			return 0;
 		}
 
-		// wipe the temporary byte[] data store
-		inodeBlock = new byte[ 512 ];
-
-		// write remaining bytes to next block
-		for( int i = 0; i < remainingbytes; i++ )
-			inodeBlock[ i ] = buffer[ i + ( buffer.length - remainingbytes ) ];
-
-		// update seek ptr
-		fEnt.seekPtr += remainingbytes;	
-
-		writtenbytes += remainingbytes;	
+		short[ ] blocks = this.superBlock.getFreeBlocks( pending );
+		if( blocks == null )
+			return -1;
 
-		// write the updated block to disk
-		SysLib.rawwrite( curblk, inodeBlock );
+		int next = 0;
+		for( int i = 0; i < inode.delayed.length; i++ )
+		{
+			if( inode.delayed[ i ] == null )
+				continue;
 
-		fEnt.inode.length = ( fEnt.seekPtr 
-		> fEnt.inode.length ? fEnt.seekPtr : fEnt.inode.length );
+			inode.direct[ i ] = blocks[ next++ ];
+			SysLib.rawwrite( inode.direct[ i ], inode.delayed[ i ] );
+			inode.delayed[ i ] = null;
+		}
+		inode.toDisk( fEnt.iNumber );
 
-		return writtenbytes;
+		return 0;
 	}
 
-	// Return the file size of the calling thread's file,
-	// or -1 if there was an error
+	// Return the file size of the calling thread's file, the bytes
+	// waiting in it for a pipe, or -1 if there was an error
 	public int fsize( FileTableEntry fEnt )
 	{
 		if( fEnt == null )
 			return -1;
+		if( fEnt instanceof PipeEnd )
+			return ( ( PipeEnd )fEnt ).available( );
 
 		int len = 0;
 		try{ len = fEnt.inode.length; }
@@ -254,6 +261,9 @@ public class FileSystem
 	//       was an error, -1 was returned  
 	public int seek( FileTableEntry fEnt, int offset, int whence )
 	{
+		if( fEnt == null || fEnt instanceof PipeEnd )
+			return -1;
+
 		int fSize = fsize( fEnt );
 		if( whence == 0 )
 			fEnt.seekPtr = offset;
@@ -281,23 +291,62 @@ public class FileSystem
 	{
 		if( fEnt == null )
 			return -1;
+		if( fEnt instanceof PipeEnd )
+			return ( ( PipeEnd )fEnt ).close( );
 
-		return ( this.fileTable.ffree( fEnt ) ? 0 : -1 );
+		if( fEnt.count == 1 )
+			writeBack( fEnt );
+
+		int closed = ( this.fileTable.ffree( fEnt ) ? 0 : -1 );
+		if( this.fileTable.fclosed( fEnt.iNumber ) )
+			release( fEnt.iNumber );
+
+		return closed;
+	}
+
+	// Shares an open file table entry with another descriptor, see
+	// FileTable.fdup( ). Each descriptor is closed separately
+	public FileTableEntry dup( FileTableEntry fEnt )
+	{
+		if( fEnt instanceof PipeEnd )
+			return ( ( PipeEnd )fEnt ).dup( );
+		return this.fileTable.fdup( fEnt );
 	}
 
 	// Enables the calling thread to delete the file specified
-	// by 'filename.' Will wait until all other threads are done
-	// operating on the file to actually delete it
+	// by 'filename.' The name goes at once, but the file's blocks
+	// and inode are only released once all other threads are done
+	// operating on the file
 	// pre : Parameter 'filename' is not null
-	// post: The file's contents on memory are reset, inode's
-	//       block pointers are reset
+	// post: The file's name is freed, and its blocks are returned
+	//       and its inode reset now or on its last close
 	public int delete( String filename )
 	{
 		short iNum = this.dir.namei( filename );
 		if( iNum == -1 )
 			return -1;
 
-		return ( this.dir.ifree( iNum ) ? 0 :-1 );
+		if( this.fileTable.funlink( iNum ) )
+			release( iNum );
+
+		return 0;
+	}
+
+	// Returns the blocks of deleted file 'iNumber' to the free list and
+	// writes its inode back reset, so the next file to get the iNumber
+	// starts out empty, then lets the iNumber be allocated again.
+	// Delayed pages need no dropping: writeBack( ) has dropped those of
+	// every entry the file was open through
+	private void release( short iNumber )
+	{
+		Inode inode = new Inode( iNumber );
+		if( inode.inline != 1 )
+			for( int i = 0; i < inode.direct.length; i++ )
+				this.superBlock.returnBlock( inode.direct[ i ] );
+
+		inode.reset( );
+		inode.toDisk( iNumber );
+		this.fileTable.freleased( iNumber );
 	}
 
 	// Removes all blocks associated with this file table entry
@@ -308,14 +357,88 @@ public class FileSystem
 			return false;
 
 		fEnt.seekPtr = 0;
-		for( int i = 0; i < fEnt.inode.direct.length; i++ )
-			this.superBlock.returnBlock( fEnt.inode.direct[ i ] );
+		if( fEnt.inode.inline != 1 )
+			for( int i = 0; i < fEnt.inode.direct.length; i++ )
+				this.superBlock.returnBlock( fEnt.inode.direct[ i ] );
 			
-		fEnt.inode.reset( );
+		fEnt.inode.truncate( );
 		
 		return true;
 	}
 
+	// Maps the open file behind 'fEnt' into the caller's address space,
+	// sharing the pages of any other view of the file. The view holds
+	// the entry open, as a descriptor would, until it is unmapped, so
+	// closing the file leaves it mapped. Returns null if there is no
+	// such open file, or it is a pipe
+	public MappedFile mmap( FileTableEntry fEnt )
+	{
+		if( fEnt == null || fEnt instanceof PipeEnd )
+			return null;
+
+		synchronized( this.mapped )
+		{
+			MappedFile.Pages pages = this.mapped.get( fEnt.iNumber );
+			if( pages == null )
+			{
+				pages = new MappedFile.Pages( fEnt.inode.length );
+				this.mapped.put( fEnt.iNumber, pages );
+			}
+			pages.map( );
+			return new MappedFile( this, this.fileTable.fdup( fEnt ), pages );
+		}
+	}
+
+	// Forgets a view of the file behind 'fEnt' with 'pages', closing the
+	// view's hold on the entry. Returns true if it was the last view, so
+	// the pages are no longer shared
+	boolean unmapped( FileTableEntry fEnt, MappedFile.Pages pages )
+	{
+		boolean last;
+		synchronized( this.mapped )
+		{
+			last = pages.unmap( );
+			if( last )
+				this.mapped.remove( fEnt.iNumber );
+		}
+
+		close( fEnt );
+		return last;
+	}
+
+	// Writes back the dirty pages of a mapping
+	public int msync( MappedFile map )
+	{
+		return ( map == null ? -1 : map.sync( ) );
+	}
+
+	// Writes back and tears down a mapping
+	public int munmap( MappedFile map )
+	{
+		return ( map == null ? -1 : map.unmap( ) );
+	}
+
+	// Returns the disk block backing block 'index' of the file, taking a
+	// block off the free list if the file does not have one there yet
+	short mapBlock( FileTableEntry fEnt, int index )
+	{
+		if( index < 0 || index >= fEnt.inode.direct.length )
+			return -1;
+
+		fEnt.inode.promote( );
+
+		if( fEnt.inode.direct[ index ] == -1 )
+		{
+			int blk = this.superBlock.getFreeBlock( );
+			if( blk == -1 )
+				return -1;
+			fEnt.inode.direct[ index ] = ( short )blk;
+			fEnt.inode.delayed[ index ] = null;
+		}
+
+		return fEnt.inode.direct[ index ];
+	}
+
 	// Instructs the file system's superblock to format the disk
 	public int format( int files )
 	{
@@ -325,6 +448,17 @@ public class FileSystem
 			return -1;		
 	}
 
+	// Writes back the delayed blocks of every open file, then
+	// synchronizes the superblock
+	public int sync( )
+	{
+		Vector<FileTableEntry> open = this.fileTable.entries( );
+		for( int i = 0; i < open.size( ); i++ )
+			writeBack( open.elementAt( i ) );
+
+		return syncSuperBlock( );
+	}
+
 	// Synchronizes the superblock
 	public int syncSuperBlock( )
 	{
@@ -1,11 +1,13 @@
 // FileTable, maintains a list of all open files in a table 
 // in kernel memory
 // Written by Brad B Baker and Joseph Kniest
+import java.util.HashSet;
 import java.util.Vector;
 public class FileTable
 {
 	private Vector<FileTableEntry> table;// file table entries
 	private Directory dir;		// Root directory
+	private HashSet<Short> unlinked;// deleted while open, see funlink( )
 
 	// Constructs the filetable module and allocates memory for
 	// its member fields
@@ -13,6 +15,7 @@ public class FileTable
 	{
 		this.dir = dir;
 		this.table = new Vector<FileTableEntry>( );
+		this.unlinked = new HashSet<Short>( );
 	}
 
 	// Create a new entry into the table and potentially allocate a new
@@ -25,6 +28,15 @@ public class FileTable
 	// post: A new file table entry is both allocated for the calling thread
 	//	 and into the list of file table entries
 	public synchronized FileTableEntry falloc( String filename, String mode )
+	{
+		return falloc( filename, mode, true );
+	}
+
+	// Allocates an entry as falloc( filename, mode ) does, but if 'wait'
+	// is false returns null rather than waiting for another thread to
+	// finish with the file
+	public synchronized FileTableEntry falloc( String filename, String mode,
+						   boolean wait )
 	{
 		Inode inode = null;
 		short iNumber = -1;
@@ -45,6 +57,8 @@ public class FileTable
 						inode.flag = 1;
 						break;
 					}
+					else if( !wait )
+						return null;
 					else if( inode.flag == 2 )//being written
 						try{ wait( ); }
 						catch( InterruptedException ie )
@@ -62,6 +76,8 @@ public class FileTable
 						inode.flag = 2;
 						break;
 					}
+					if( !wait )
+						return null;
 					if( inode.flag == 1 || inode.flag == 2 )
 						try{ wait( ); }
 						catch( InterruptedException ie )
@@ -82,6 +98,11 @@ public class FileTable
 				// No more room for additional files/inodes?
 				if( iNumber == -1 )
 					return null;
+
+				// Start the new file out empty on disk rather than
+				// with what a deleted file left in the inode
+				inode.flag = 0;
+				inode.toDisk( iNumber );
 			}
 		}
 		inode.count++;
@@ -122,6 +143,64 @@ public class FileTable
 		return true;
 	}
 
+	// Adds a reference to an open entry, for a descriptor that has been
+	// duplicated or inherited; it is released by ffree( ) like any other
+	public synchronized FileTableEntry fdup( FileTableEntry fEnt )
+	{
+		if( fEnt != null )
+			fEnt.count++;
+		return fEnt;
+	}
+
+	// Unbinds the name of file 'iNumber', holding the iNumber until the
+	// file's inode has been released, see freleased( ). Returns true if
+	// no entry has the file open, so it can be released now; otherwise
+	// fclosed( ) says when the last entry has been freed
+	public synchronized boolean funlink( short iNumber )
+	{
+		dir.ifree( iNumber );
+		dir.ihold( iNumber, true );
+		if( !fopen( iNumber ) )
+			return true;
+
+		this.unlinked.add( iNumber );
+		return false;
+	}
+
+	// Returns true, once, when file 'iNumber', deleted while it was open,
+	// is no longer open by any entry, so it can be released
+	public synchronized boolean fclosed( short iNumber )
+	{
+		return !fopen( iNumber ) && this.unlinked.remove( iNumber );
+	}
+
+	// Lets an iNumber held by funlink( ) be allocated again
+	public synchronized void freleased( short iNumber )
+	{
+		dir.ihold( iNumber, false );
+	}
+
+	// Whether any entry still has file 'iNumber' open. An entry is left
+	// in the table once closed if its inode's count is off, so only
+	// entries with references count
+	private boolean fopen( short iNumber )
+	{
+		for( int i = 0; i < this.table.size( ); i++ )
+		{
+			FileTableEntry fEnt = this.table.elementAt( i );
+			if( fEnt.iNumber == iNumber && fEnt.count > 0 )
+				return true;
+		}
+
+		return false;
+	}
+
+	// Returns a copy of the entries currently in the table
+	public synchronized Vector<FileTableEntry> entries( )
+	{
+		return new Vector<FileTableEntry>( table );
+	}
+
 	// Checks if this file table is empty
 	public synchronized boolean fempty( )
 	{
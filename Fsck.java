@@ -0,0 +1,513 @@
+// Offline consistency checker for a ThreadOS disk image. It reads the
+// image file directly, decoding it with the same SuperBlock, Inode and
+// Directory formats the kernel uses, and reports
+//  - inode block pointers that fall outside the data region
+//  - blocks claimed by two inodes, or by an inode and the free list
+//  - orphaned blocks, in no file and not on the free list
+//  - inodes holding data that no directory entry reaches
+//  - malformed or duplicate directory entries
+//  - inodes a crash left marked open
+// With -r the problems are repaired in place and the free list is
+// rebuilt. The inode table and the data region are each scanned in
+// parallel on a fork-join pool; the free list walk in between is a
+// linked list and stays sequential.
+//
+// usage: java Fsck [-r] [-j threads] [image]   (image defaults to DISK)
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class Fsck
+{
+	private final static int blockSize = 512;
+	private final static int inodeBlocksPerTask = 8;
+	private final static int dataBlocksPerTask = 1024;
+
+	private final FileChannel image;
+	private final boolean repair;
+	private final ForkJoinPool pool;
+
+	// superblock fields
+	private int totalBlocks;
+	private int inodeBlocks;
+	private int freeList;
+	private int freeHigh;
+	private int dataStart;
+
+	private Inode[ ] inodes;
+	private AtomicIntegerArray owner;   // inode claiming each block, -1 if none
+	private boolean[ ] free;            // block is on the returned block stack
+	private Directory dir;
+
+	private final Vector<String> problems = new Vector<String>( );
+	private final ConcurrentLinkedQueue<int[ ]> duplicates
+		= new ConcurrentLinkedQueue<int[ ]>( ); // { block, losing inode }
+	private final ConcurrentLinkedQueue<Integer> orphans
+		= new ConcurrentLinkedQueue<Integer>( );
+
+	public Fsck( FileChannel image, boolean repair, int threads )
+	{
+		this.image = image;
+		this.repair = repair;
+		this.pool = new ForkJoinPool( threads );
+	}
+
+	public static void main( String[ ] args )
+	{
+		boolean repair = false;
+		int threads = Runtime.getRuntime( ).availableProcessors( );
+		String path = "DISK";
+
+		for( int i = 0; i < args.length; i++ )
+		{
+			if( args[ i ].equals( "-r" ) )
+				repair = true;
+			else if( args[ i ].equals( "-j" ) && i + 1 < args.length )
+				threads = Math.max( 1, Integer.parseInt( args[ ++i ] ) );
+			else
+				path = args[ i ];
+		}
+
+		try
+		{
+			RandomAccessFile file = new RandomAccessFile( path, repair ? "rw" : "r" );
+			Fsck fsck = new Fsck( file.getChannel( ), repair, threads );
+			int found = fsck.check( );
+			file.close( );
+
+			if( found == 0 )
+				System.out.println( "fsck: " + path + " is clean" );
+			else
+				System.out.println( "fsck: " + found + " problem(s) found"
+					+ ( repair ? " and repaired" : ", run with -r to repair" ) );
+
+			System.exit( found == 0 ? 0 : ( repair ? 1 : 2 ) );
+		}
+		catch( IOException e )
+		{
+			System.out.println( "fsck: " + e );
+			System.exit( 4 );
+		}
+	}
+
+	// Runs every pass over the image, and the repair if one was asked
+	// for. Returns the number of problems found
+	public int check( ) throws IOException
+	{
+		try
+		{
+			if( !readSuperBlock( ) )
+				return problems.size( );
+
+			pool.invoke( new InodeScan( 0, inodeBlocks ) );
+			loadDirectory( );
+			walkFreeList( );
+			pool.invoke( new DataSweep( dataStart, freeHigh ) );
+			checkDirectory( );
+		}
+		finally
+		{
+			pool.shutdown( );
+		}
+
+		for( int[ ] dup : duplicates )
+			report( "block " + dup[ 0 ] + " is also claimed by inode " + dup[ 1 ] );
+		if( !orphans.isEmpty( ) )
+			report( orphans.size( ) + " orphaned block(s), in no file and"
+				+ " not on the free list" );
+
+		for( int i = 0; i < problems.size( ); i++ )
+			System.out.println( "fsck: " + problems.elementAt( i ) );
+
+		if( repair && !problems.isEmpty( ) )
+			writeRepairs( );
+
+		return problems.size( );
+	}
+
+	// Decodes block 0. A superblock that does not describe this image is
+	// beyond repair here: the disk needs a format
+	private boolean readSuperBlock( ) throws IOException
+	{
+		byte[ ] block = new byte[ blockSize ];
+		readBlock( 0, block );
+		totalBlocks = SysLib.bytes2int( block, 0 );
+		inodeBlocks = SysLib.bytes2int( block, 4 );
+		freeList = SysLib.bytes2int( block, 8 );
+		freeHigh = SysLib.bytes2int( block, 12 );
+		dataStart = inodeBlocks + 1;
+
+		if( totalBlocks <= 0 || ( long )totalBlocks * blockSize > image.size( )
+		    || inodeBlocks <= 0 || dataStart > totalBlocks
+		    || freeHigh < dataStart || freeHigh > totalBlocks )
+		{
+			report( "superblock is damaged (total=" + totalBlocks + " inodeBlocks="
+				+ inodeBlocks + " freeHigh=" + freeHigh + "), the disk must"
+				+ " be formatted" );
+			return false;
+		}
+
+		inodes = new Inode[ inodeBlocks * Inode.inodesPerBlock( ) ];
+		owner = new AtomicIntegerArray( totalBlocks );
+		for( int i = 0; i < totalBlocks; i++ )
+			owner.set( i, -1 );
+		free = new boolean[ totalBlocks ];
+		return true;
+	}
+
+	// Decodes and checks the inodes in a range of inode blocks, splitting
+	// the range across the pool until it is small
+	private class InodeScan extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int lo, hi;  // inode block indexes, block 1 is index 0
+
+		InodeScan( int lo, int hi )
+		{
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected void compute( )
+		{
+			if( hi - lo > inodeBlocksPerTask )
+			{
+				int mid = ( lo + hi ) >>> 1;
+				invokeAll( new InodeScan( lo, mid ), new InodeScan( mid, hi ) );
+				return;
+			}
+
+			byte[ ] block = new byte[ blockSize ];
+			int perBlock = Inode.inodesPerBlock( );
+			for( int b = lo; b < hi; b++ )
+			{
+				try { readBlock( b + 1, block ); }
+				catch( IOException e ) { report( "inode block " + ( b + 1 ) + ": " + e ); continue; }
+
+				for( int k = 0; k < perBlock; k++ )
+				{
+					short iNumber = ( short )( b * perBlock + k );
+					Inode inode = new Inode( block, Inode.offsetOf( iNumber ) );
+					inodes[ iNumber ] = inode;
+					checkInode( iNumber, inode );
+				}
+			}
+		}
+	}
+
+	// Checks one inode and claims its blocks. Repairs are made to the
+	// in-memory copy and only written out at the end
+	private void checkInode( short iNumber, Inode inode )
+	{
+		if( inode.flag != 0 || inode.count != 0 )
+		{
+			report( "inode " + iNumber + " was left open (flag=" + inode.flag
+				+ " count=" + inode.count + ")" );
+			inode.flag = 0;
+			inode.count = 0;
+		}
+
+		if( inode.inline == 1 )
+		{
+			if( inode.length < 0 || inode.length > Inode.inlineSize )
+			{
+				report( "inode " + iNumber + " has inline length " + inode.length );
+				inode.length = Math.max( 0, Math.min( inode.length, Inode.inlineSize ) );
+			}
+			return;
+		}
+
+		int last = -1;
+		for( int i = 0; i < inode.direct.length; i++ )
+		{
+			int blk = inode.direct[ i ];
+			if( blk == -1 )
+				continue;
+
+			if( blk < dataStart || blk >= freeHigh )
+			{
+				report( "inode " + iNumber + " points outside the data region"
+					+ " at block " + blk );
+				inode.direct[ i ] = -1;
+				continue;
+			}
+
+			claim( blk, iNumber );
+			last = i;
+		}
+
+		if( inode.length < 0 || inode.length > ( last + 1 ) * blockSize )
+		{
+			report( "inode " + iNumber + " has length " + inode.length
+				+ " but only " + ( last + 1 ) + " block(s)" );
+			inode.length = Math.max( 0, Math.min( inode.length, ( last + 1 ) * blockSize ) );
+		}
+	}
+
+	// Records 'iNumber' as the owner of 'blk'. When two inodes claim the
+	// same block the lower numbered one keeps it
+	private void claim( int blk, int iNumber )
+	{
+		while( true )
+		{
+			int current = owner.get( blk );
+			if( current == -1 )
+			{
+				if( owner.compareAndSet( blk, -1, iNumber ) )
+					return;
+			}
+			else if( iNumber < current )
+			{
+				if( owner.compareAndSet( blk, current, iNumber ) )
+				{
+					duplicates.add( new int[ ] { blk, current } );
+					return;
+				}
+			}
+			else
+			{
+				duplicates.add( new int[ ] { blk, iNumber } );
+				return;
+			}
+		}
+	}
+
+	// Reads the root directory file out of inode 0
+	private void loadDirectory( ) throws IOException
+	{
+		dir = new Directory( inodes.length );
+		Inode root = inodes[ 0 ];
+		if( root.length <= 0 )
+			return;
+
+		byte[ ] data = new byte[ root.length ];
+		if( root.inline == 1 )
+			System.arraycopy( root.data, 0, data, 0, root.length );
+		else
+		{
+			byte[ ] block = new byte[ blockSize ];
+			for( int pos = 0; pos < root.length; pos += blockSize )
+			{
+				short blk = root.findTargetBlock( pos );
+				if( blk == -1 )
+					break;
+				readBlock( blk, block );
+				System.arraycopy( block, 0, data, pos,
+					Math.min( blockSize, root.length - pos ) );
+			}
+		}
+
+		if( dir.bytes2directory( data ) != 0 )
+			report( "root directory is truncated" );
+	}
+
+	// Follows the returned block stack from the superblock, checking
+	// that every block on it is free and in range and that it ends
+	private void walkFreeList( ) throws IOException
+	{
+		byte[ ] block = new byte[ blockSize ];
+		int blk = freeList;
+		while( blk != -1 )
+		{
+			if( blk < dataStart || blk >= freeHigh )
+			{
+				report( "free list runs out of the data region at block " + blk );
+				return;
+			}
+			if( free[ blk ] )
+			{
+				report( "free list loops back on block " + blk );
+				return;
+			}
+
+			free[ blk ] = true;
+			if( owner.get( blk ) != -1 )
+				report( "block " + blk + " is on the free list but used by inode "
+					+ owner.get( blk ) );
+
+			readBlock( blk, block );
+			blk = SysLib.bytes2short( block, 0 );
+		}
+	}
+
+	// Finds the allocated blocks that are neither in a file nor free
+	private class DataSweep extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int lo, hi;
+
+		DataSweep( int lo, int hi )
+		{
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected void compute( )
+		{
+			if( hi - lo > dataBlocksPerTask )
+			{
+				int mid = ( lo + hi ) >>> 1;
+				invokeAll( new DataSweep( lo, mid ), new DataSweep( mid, hi ) );
+				return;
+			}
+
+			for( int blk = lo; blk < hi; blk++ )
+				if( owner.get( blk ) == -1 && !free[ blk ] )
+					orphans.add( blk );
+		}
+	}
+
+	// Checks every directory entry, and that every inode holding data
+	// is reached by one
+	private void checkDirectory( )
+	{
+		Hashtable<String, Short> names = new Hashtable<String, Short>( );
+		for( short i = 1; i < dir.maxInumber( ); i++ )
+		{
+			if( !dir.ivalid( i ) )
+			{
+				report( "directory entry " + i + " is malformed" );
+				dir.ifree( i );
+				continue;
+			}
+
+			String name = dir.iname( i );
+			if( name == null )
+				continue;
+
+			Short first = names.get( name );
+			if( first != null )
+			{
+				report( "directory entry " + i + " repeats the name \"" + name
+					+ "\" of entry " + first );
+				dir.ifree( i );
+				continue;
+			}
+			names.put( name, i );
+		}
+
+		for( short i = 1; i < inodes.length; i++ )
+		{
+			Inode inode = inodes[ i ];
+			boolean holdsData = inode.length > 0;
+			for( int j = 0; j < inode.direct.length && !holdsData; j++ )
+				holdsData = ( inode.inline != 1 && inode.direct[ j ] != -1 );
+
+			if( holdsData && !dir.iused( i ) )
+			{
+				report( "inode " + i + " holds data but has no directory entry" );
+				inode.truncate( );
+			}
+		}
+	}
+
+	// Writes the repaired inodes and directory back, then rebuilds the
+	// free list from whatever no inode uses
+	private void writeRepairs( ) throws IOException
+	{
+		for( int[ ] dup : duplicates )
+		{
+			Inode loser = inodes[ dup[ 1 ] ];
+			for( int j = 0; j < loser.direct.length; j++ )
+				if( loser.direct[ j ] == dup[ 0 ] )
+					loser.direct[ j ] = -1;
+		}
+
+		writeDirectory( );
+
+		byte[ ] block = new byte[ blockSize ];
+		int perBlock = Inode.inodesPerBlock( );
+		for( int b = 0; b < inodeBlocks; b++ )
+		{
+			for( int k = 0; k < perBlock; k++ )
+			{
+				short iNumber = ( short )( b * perBlock + k );
+				inodes[ iNumber ].toBytes( block, Inode.offsetOf( iNumber ) );
+			}
+			writeBlock( b + 1, block );
+		}
+
+		boolean[ ] used = new boolean[ totalBlocks ];
+		for( int i = 0; i < inodes.length; i++ )
+			if( inodes[ i ].inline != 1 )
+				for( int j = 0; j < inodes[ i ].direct.length; j++ )
+					if( inodes[ i ].direct[ j ] != -1 )
+						used[ inodes[ i ].direct[ j ] ] = true;
+
+		// push from the top down so the lowest free block is handed out first
+		freeList = -1;
+		for( int blk = freeHigh - 1; blk >= dataStart; blk-- )
+		{
+			if( used[ blk ] )
+				continue;
+			if( blk == freeHigh - 1 )
+			{
+				freeHigh--;
+				continue;
+			}
+			Arrays.fill( block, ( byte )0 );
+			SysLib.short2bytes( ( short )freeList, block, 0 );
+			writeBlock( blk, block );
+			freeList = blk;
+		}
+
+		Arrays.fill( block, ( byte )0 );
+		SysLib.int2bytes( totalBlocks, block, 0 );
+		SysLib.int2bytes( inodeBlocks, block, 4 );
+		SysLib.int2bytes( freeList, block, 8 );
+		SysLib.int2bytes( freeHigh, block, 12 );
+		writeBlock( 0, block );
+		image.force( true );
+	}
+
+	// Writes the cleaned directory back into the blocks the root file
+	// already has. Never allocates, so a root file too short to hold it
+	// is left as it was
+	private void writeDirectory( ) throws IOException
+	{
+		Inode root = inodes[ 0 ];
+		if( root.length <= 0 || root.inline == 1 )
+			return;
+
+		byte[ ] data = dir.directory2bytes( );
+		byte[ ] block = new byte[ blockSize ];
+		for( int pos = 0; pos < data.length; pos += blockSize )
+			if( root.findTargetBlock( pos ) == -1 )
+				return;
+
+		for( int pos = 0; pos < data.length; pos += blockSize )
+		{
+			Arrays.fill( block, ( byte )0 );
+			System.arraycopy( data, pos, block, 0, Math.min( blockSize, data.length - pos ) );
+			writeBlock( root.findTargetBlock( pos ), block );
+		}
+	}
+
+	private void report( String problem )
+	{
+		problems.add( problem );
+	}
+
+	// Positional reads and writes, safe to issue from several workers
+	private void readBlock( int blk, byte[ ] buffer ) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.wrap( buffer );
+		long pos = ( long )blk * blockSize;
+		while( buf.hasRemaining( ) )
+			if( image.read( buf, pos + buf.position( ) ) < 0 )
+				throw new EOFException( "block " + blk + " is past the end of the image" );
+	}
+
+	private void writeBlock( int blk, byte[ ] buffer ) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.wrap( buffer );
+		long pos = ( long )blk * blockSize;
+		while( buf.hasRemaining( ) )
+			image.write( buf, pos + buf.position( ) );
+	}
+}
@@ -0,0 +1,106 @@
+// ImageDisk, a Disk whose blocks are kept in a host file named by the
+// kernel rather than in DISK, so that kernels booted side by side in
+// one JVM each have an image of their own; see the disk= boot option.
+//
+// As with Disk, the blocks are held in memory, loaded from the image
+// when the disk is made and written back to it on sync( ). Unlike Disk,
+// a transfer is done as soon as it is asked for: read( ) and write( )
+// return once the block is copied and the disk is always ready, so no
+// thread waits on the I/O queue for it and no seek time is simulated
+import java.io.*;
+
+public class ImageDisk extends Disk
+{
+	private final String image;         // host file the blocks sync to
+	private final byte[ ][ ] blocks;
+
+	// Makes a disk of 'totalBlocks' blocks, loaded from host file 'image'
+	// if it exists
+	public ImageDisk( int totalBlocks, String image )
+	{
+		super( 1 );                 // Disk's own blocks go unused
+		this.image = image;
+		this.blocks = new byte[ totalBlocks ][ blockSize ];
+
+		try
+		{
+			DataInputStream in = new DataInputStream(
+				new BufferedInputStream( new FileInputStream( image ) ) );
+			try
+			{
+				for( int i = 0; i < this.blocks.length; i++ )
+					in.readFully( this.blocks[ i ] );
+			}
+			catch( EOFException e )
+			{
+				// a short image leaves the rest of the disk zeroed
+			}
+			in.close( );
+		}
+		catch( FileNotFoundException e )
+		{
+			System.out.println( "threadOS: " + image + " created" );
+		}
+		catch( IOException e )
+		{
+			System.out.println( "threadOS: " + image + ": " + e );
+		}
+	}
+
+	public synchronized boolean read( int blockId, byte buffer[ ] )
+	{
+		if( blockId < 0 || blockId >= this.blocks.length )
+		{
+			System.out.println( "threadOS: a wrong blockId for read" );
+			return false;
+		}
+		System.arraycopy( this.blocks[ blockId ], 0, buffer, 0, blockSize );
+		return true;
+	}
+
+	public synchronized boolean write( int blockId, byte buffer[ ] )
+	{
+		if( blockId < 0 || blockId >= this.blocks.length )
+		{
+			System.out.println( "threadOS: a wrong blockId for write" );
+			return false;
+		}
+		System.arraycopy( buffer, 0, this.blocks[ blockId ], 0, blockSize );
+		return true;
+	}
+
+	// Writes every block back to the image. A failed write is reported
+	// rather than retried, as the kernel waits until sync( ) succeeds
+	public synchronized boolean sync( )
+	{
+		try
+		{
+			OutputStream out = new BufferedOutputStream(
+				new FileOutputStream( this.image ) );
+			for( int i = 0; i < this.blocks.length; i++ )
+				out.write( this.blocks[ i ] );
+			out.close( );
+		}
+		catch( IOException e )
+		{
+			System.out.println( "threadOS: " + this.image + ": " + e );
+		}
+		return true;
+	}
+
+	public synchronized boolean testAndResetReady( )
+	{
+		return true;
+	}
+
+	public synchronized boolean testReady( )
+	{
+		return true;
+	}
+
+	// There are no commands to wait for, so the disk thread has nothing
+	// to do
+	public void run( )
+	{
+	}
+}
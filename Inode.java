@@ -2,65 +2,143 @@
 // that hold the file's data. Written by Joseph Kniest and Brad Baker
 public class Inode
 {
-	private final static int iNodeSize = 32;          // fix to 32 bytes
+	private final static int iNodeSize = 256;         // fix to 256 bytes
 	private final static int directSize = 11;         // # direct pointers
+	private final static int dataOffset = 10;         // inline data or pointers
+	public final static int inlineSize = iNodeSize - dataOffset; // inline capacity
 	public int length;                                // file size in bytes
 	public short count;                               // # file-table entries pointing to this
 	public short flag;                                // 0 = unused, 1 = used, ...
+	public short inline;                              // 1 = data lives in the inode
 	public short direct[ ] = new short[ directSize ]; // direct pointers
 	public short indirect;                            // a indirect pointer
+	public byte data[ ] = new byte[ inlineSize ];     // inline file data
 
+	// Not written to disk: data written past the file's allocated blocks,
+	// held here until FileSystem.writeBack( ) gives it disk blocks
+	public byte delayed[ ][ ] = new byte[ directSize ][ ];
+
+	// A new file starts out empty with its data inline
 	Inode( )
 	{
         	length = 0;
         	count = 0;
         	flag = 1;
+        	inline = 1;
         	for( int i = 0; i < directSize; i++ )
         		direct[ i ] = -1;
 
         	indirect = -1;
 	}
 
-	// Read in the inode from the disk that is specified by the inumber
+	// Read in the inode from the disk that is specified by the inumber.
+	// A small file's data comes in with this same block read
 	Inode( short iNumber )
 	{
-		int readblock = ( iNumber / 16 ) + 1;
-		byte[ ] inode = new byte[ 32 ];
 		byte[ ] block = new byte[ 512 ];
-		SysLib.rawread( readblock, block );
-		int startaddress = ( iNumber % 16 ) * 32;
-		System.arraycopy( inode, 0, block, startaddress, 32 );
-
-            	this.length = SysLib.bytes2int( inode, 0 );
-		this.count = SysLib.bytes2short( inode, 4 );
-		this.flag = SysLib.bytes2short( inode, 6 );
-		for( int i = 0; i < directSize; i++ )
-			this.direct[ i ] = SysLib.bytes2short( inode, 8 + ( i * 2 ) );
+		SysLib.rawread( blockOf( iNumber ), block );
+		fromBytes( block, offsetOf( iNumber ) );
+	}
 
-		this.indirect = SysLib.bytes2short( inode, 8 + ( 2 * directSize ) );
+	// Read in the inode stored at 'offset' in an inode block that has
+	// already been read
+	Inode( byte[ ] block, int offset )
+	{
+		fromBytes( block, offset );
 	}
 
 	// Write this inode's data back to disk
 	// Implement option 2: to maintain inode consistency!
 	int toDisk( short iNumber )
 	{
-		int writeblock = ( iNumber / 16 ) + 1;
-		byte[ ] inode = new byte[ 32 ];
+		int writeblock = blockOf( iNumber );
 		byte[ ] block = new byte[ 512 ];
-		int writebackoffset = ( iNumber % 16 ) * 32;
 		SysLib.rawread( writeblock, block );
+		toBytes( block, offsetOf( iNumber ) );
+		SysLib.rawwrite( writeblock, block );
+		return 0;
+	}
+
+	// Decodes the on-disk record at 'offset'. Bytes 0-9 hold length,
+	// count, flag and the inline marker. The rest of the record is
+	// either the file data itself or the direct and indirect pointers
+	private void fromBytes( byte[ ] block, int offset )
+	{
+            	this.length = SysLib.bytes2int( block, offset );
+		this.count = SysLib.bytes2short( block, offset + 4 );
+		this.flag = SysLib.bytes2short( block, offset + 6 );
+		this.inline = SysLib.bytes2short( block, offset + 8 );
+		if( this.inline == 1 )
+		{
+			for( int i = 0; i < directSize; i++ )
+				this.direct[ i ] = -1;
+			this.indirect = -1;
+			System.arraycopy( block, offset + dataOffset, this.data, 0, inlineSize );
+			return;
+		}
 
-        	SysLib.int2bytes( this.length, inode, 0 );
-            	SysLib.short2bytes( this.count, inode, 4 );
-        	SysLib.short2bytes( this.flag, inode, 6 );
 		for( int i = 0; i < directSize; i++ )
-			SysLib.short2bytes( this.direct[ i ], inode, 8 + ( i * 2 ) );
+			this.direct[ i ] = SysLib.bytes2short( block,
+				offset + dataOffset + ( i * 2 ) );
 
-        	SysLib.short2bytes( this.indirect, inode, 30 );
+		this.indirect = SysLib.bytes2short( block,
+			offset + dataOffset + ( 2 * directSize ) );
+	}
 
-		System.arraycopy( inode, 0, block, writebackoffset, 32 );
-		SysLib.rawwrite( writeblock, block );
-		return 0;
+	// Encodes this inode into its on-disk record at 'offset'
+	void toBytes( byte[ ] block, int offset )
+	{
+        	SysLib.int2bytes( this.length, block, offset );
+            	SysLib.short2bytes( this.count, block, offset + 4 );
+        	SysLib.short2bytes( this.flag, block, offset + 6 );
+        	SysLib.short2bytes( this.inline, block, offset + 8 );
+		if( this.inline == 1 )
+		{
+			System.arraycopy( this.data, 0, block, offset + dataOffset, inlineSize );
+			return;
+		}
+
+		for( int i = 0; i < directSize; i++ )
+			SysLib.short2bytes( this.direct[ i ], block,
+				offset + dataOffset + ( i * 2 ) );
+
+        	SysLib.short2bytes( this.indirect, block,
+			offset + dataOffset + ( 2 * directSize ) );
+	}
+
+	// Moves an inline file's data out of the inode. The data becomes
+	// delayed block 0, so it gets a disk block on the next write back
+	void promote( )
+	{
+		if( this.inline != 1 )
+			return;
+
+		if( this.length > 0 )
+		{
+			this.delayed[ 0 ] = new byte[ 512 ];
+			System.arraycopy( this.data, 0, this.delayed[ 0 ], 0, this.length );
+		}
+		this.inline = 0;
+		for( int i = 0; i < inlineSize; i++ )
+			this.data[ i ] = 0;
+	}
+
+	// number of inodes stored in each inode block
+	static int inodesPerBlock( )
+	{
+		return 512 / iNodeSize;
+	}
+
+	// the disk block holding inode 'iNumber'
+	static int blockOf( short iNumber )
+	{
+		return ( iNumber / inodesPerBlock( ) ) + 1;
+	}
+
+	// the byte offset of inode 'iNumber' inside its block
+	static int offsetOf( short iNumber )
+	{
+		return ( iNumber % inodesPerBlock( ) ) * iNodeSize;
 	}
 
 	// Functionality to use Inodes
@@ -80,6 +158,12 @@ public class Inode
 		return false; //inode full
 	}
 
+	// the number of data blocks an inode can address
+	static int maxBlocks( )
+	{
+		return directSize;
+	}
+
 	// gets block number from an offset
 	short findTargetBlock ( int offset ) {
 		short blk = ( short ) (offset / 512);
@@ -92,11 +176,28 @@ public class Inode
 	// reset this inode, setting all its values back to default
 	public void reset( )
 	{
-		this.length = 0;
 		this.count = ( short )0;
 		this.flag = ( short )0;
+		truncate( );
+	}
+
+	// empty the file, leaving it an inline file of length zero
+	public void truncate( )
+	{
+		this.length = 0;
+		this.inline = 1;
+		for( int i = 0; i < directSize; i++ )
+			this.direct[ i ] = ( short )-1;
+		for( int i = 0; i < inlineSize; i++ )
+			this.data[ i ] = 0;
+		dropDelayed( );
+	}
+
+	// forget any data still waiting on delayed allocation
+	public void dropDelayed( )
+	{
 		for( int i = 0; i < directSize; i++ )
-			this.direct[ i ] = ( short )0;
+			this.delayed[ i ] = null;
 	}
 }
 
@@ -0,0 +1,146 @@
+// A submission and completion ring for batching file and cache system
+// calls. A thread queues READ, WRITE, CREAD, CWRITE, OPEN and CLOSE
+// operations with the prep methods, hands the whole batch to the kernel
+// with SysLib.submit( ), and later reaps one completion per operation,
+// tagged with the user data it was queued with.
+//
+// The kernel runs the batch in a single system call, in queue order,
+// except that a run of back to back cache operations is sorted by block
+// so each block is visited once, and back to back reads or writes on
+// one file descriptor are done as one larger read or write. A ring
+// belongs to the thread that made it; its descriptors are that thread's
+public class IoRing
+{
+	private final int mask;
+
+	// submission queue, filled by the prep methods, drained by the kernel
+	final int[ ] sqOp;        // Kernel.READ, WRITE, CREAD, ...
+	final int[ ] sqArg;       // file descriptor or block number
+	final int[ ] sqMode;      // index into Kernel.MODES for OPEN
+	final Object[ ] sqBuf;    // byte[ ] buffer, or file name for OPEN
+	final long[ ] sqData;
+	int sqHead, sqTail;
+
+	// completion queue, filled by the kernel, drained by reap( )
+	final int[ ] cqResult;
+	final long[ ] cqData;
+	int cqHead, cqTail;
+
+	// Makes a ring with room for at least 'entries' operations in
+	// flight, rounded up to a power of two
+	public IoRing( int entries )
+	{
+		int size = 1;
+		while( size < entries )
+			size <<= 1;
+
+		this.mask = size - 1;
+		this.sqOp = new int[ size ];
+		this.sqArg = new int[ size ];
+		this.sqMode = new int[ size ];
+		this.sqBuf = new Object[ size ];
+		this.sqData = new long[ size ];
+		this.cqResult = new int[ size ];
+		this.cqData = new long[ size ];
+	}
+
+	public boolean prepRead( int fd, byte[ ] buffer, long userData )
+	{
+		return prep( Kernel.READ, fd, 0, buffer, userData );
+	}
+
+	public boolean prepWrite( int fd, byte[ ] buffer, long userData )
+	{
+		return prep( Kernel.WRITE, fd, 0, buffer, userData );
+	}
+
+	public boolean prepCread( int blkNumber, byte[ ] buffer, long userData )
+	{
+		return prep( Kernel.CREAD, blkNumber, 0, buffer, userData );
+	}
+
+	public boolean prepCwrite( int blkNumber, byte[ ] buffer, long userData )
+	{
+		return prep( Kernel.CWRITE, blkNumber, 0, buffer, userData );
+	}
+
+	// The completion result is the new file descriptor, or -1
+	public boolean prepOpen( String fileName, String mode, long userData )
+	{
+		for( int i = 0; i < Kernel.MODES.length; i++ )
+			if( Kernel.MODES[ i ].equals( mode ) )
+				return prep( Kernel.OPEN, 0, i, fileName, userData );
+		return false;
+	}
+
+	public boolean prepClose( int fd, long userData )
+	{
+		return prep( Kernel.CLOSE, fd, 0, null, userData );
+	}
+
+	// Operations queued and not yet submitted
+	public int queued( )
+	{
+		return this.sqTail - this.sqHead;
+	}
+
+	// Completions waiting to be reaped
+	public int completed( )
+	{
+		return this.cqTail - this.cqHead;
+	}
+
+	// Copies up to 'results.length' completions, in the order the
+	// operations were queued, into 'results' and 'userData', and
+	// returns how many were copied
+	public int reap( int[ ] results, long[ ] userData )
+	{
+		int n = Math.min( completed( ), Math.min( results.length,
+							   userData.length ) );
+		for( int i = 0; i < n; i++ )
+		{
+			int slot = this.cqHead++ & this.mask;
+			results[ i ] = this.cqResult[ slot ];
+			userData[ i ] = this.cqData[ slot ];
+		}
+		return n;
+	}
+
+	// Returns false, queueing nothing, if the ring is full or an operation
+	// other than CLOSE has no buffer or file name for the kernel to use.
+	// Completions count against the ring too, so reap them to make room
+	private boolean prep( int op, int arg, int mode, Object buf, long data )
+	{
+		if( buf == null && op != Kernel.CLOSE )
+			return false;
+		if( queued( ) + completed( ) > this.mask )
+			return false;
+
+		int slot = this.sqTail & this.mask;
+		this.sqOp[ slot ] = op;
+		this.sqArg[ slot ] = arg;
+		this.sqMode[ slot ] = mode;
+		this.sqBuf[ slot ] = buf;
+		this.sqData[ slot ] = data;
+		this.sqTail++;
+		return true;
+	}
+
+	// Used by the kernel: the ring slot of the i'th queued operation
+	int slot( int i )
+	{
+		return ( this.sqHead + i ) & this.mask;
+	}
+
+	// Used by the kernel: retires the oldest queued operation, posting
+	// 'result' as its completion
+	void complete( int result )
+	{
+		int slot = this.sqHead & this.mask;
+		int cq = this.cqTail++ & this.mask;
+		this.cqResult[ cq ] = result;
+		this.cqData[ cq ] = this.sqData[ slot ];
+		this.sqBuf[ slot ] = null;
+		this.sqHead++;
+	}
+}
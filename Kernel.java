@@ -1,4 +1,6 @@
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.lang.reflect.*;
 import java.io.*;
 
@@ -36,6 +38,64 @@ public class Kernel
     public final static int FORMAT  = 18; // SysLib.format( int files )
     public final static int DELETE  = 19; // SysLib.delete( String fileName )
 
+    // Memory mapped files
+    public final static int MMAP    = 20; // SysLib.mmap( int fd )
+    public final static int MSYNC   = 21; // SysLib.msync( MappedFile map )
+    public final static int MUNMAP  = 22; // SysLib.munmap( MappedFile map )
+
+    // Scheduling parameters
+    public final static int SCHED   = 23; // SysLib.tickets( int n ) and
+                                          // SysLib.deadline( int ms )
+    public final static int PS      = 24; // SysLib.ps( Vector rows )
+
+    // Batched system calls
+    public final static int SUBMIT  = 25; // SysLib.submit( IoRing ring )
+
+    // Program loading
+    public final static int PROGSTAT= 26; // SysLib.progstat( Vector rows )
+
+    // Descriptors
+    public final static int DUP     = 27; // SysLib.dup( int fd ) and
+                                          // SysLib.dup2( int fd, int fd2 )
+
+    // Pipes and shared memory
+    public final static int PIPE    = 28; // SysLib.pipe( int fds[] )
+    public final static int SHMGET  = 29; // SysLib.shmget( String name,
+                                          //                int size )
+    public final static int SHMRM   = 30; // SysLib.shmrm( String name )
+
+    // Kernel counters
+    public final static int STAT    = 31; // SysLib.stat( long counters[] )
+
+    // Indexes into the counters filled in by SysLib.stat( ), which
+    // count up from boot
+    public final static int STAT_SYSCALLS     = 0;
+    public final static int STAT_DISK_READS   = 1;
+    public final static int STAT_DISK_WRITES  = 2;
+    public final static int STAT_CACHE_HITS   = 3;
+    public final static int STAT_CACHE_MISSES = 4;
+    public final static int STAT_SWITCHES     = 5; // context switches
+    public final static int STAT_SIZE         = 6;
+    public final static String[] STAT_NAMES = {
+	"syscalls", "disk reads", "disk writes", "cache hits",
+	"cache misses", "switches" };
+
+    // Metrics and tracing
+    public final static int METRICS = 32; // SysLib.metrics( Vector rows )
+    public final static int TRACE   = 33; // SysLib.trace( String file )
+
+    // Descriptors, continued
+    public final static int CLOEXEC = 34; // SysLib.cloexec( int fd )
+
+    // System call names, as metrics and traces show them
+    public final static String[] SYSCALL_NAMES = {
+	"boot", "exec", "wait", "exit", "sleep", "rawread", "rawwrite",
+	"sync", "read", "write", "cread", "cwrite", "csync", "cflush",
+	"open", "close", "size", "seek", "format", "delete", "mmap",
+	"msync", "munmap", "sched", "ps", "submit", "progstat", "dup",
+	"pipe", "shmget", "shmrm", "stat", "metrics", "trace",
+	"cloexec" };
+
     // Predefined file descriptors
     public final static int STDIN  = 0;
     public final static int STDOUT = 1;
@@ -45,178 +105,165 @@ public class Kernel
     public final static int OK = 0;
     public final static int ERROR = -1;
 
+    // The kernel each thread's system calls go to: the one the thread
+    // booted, or else the one its creator's went to. User threads, and
+    // the scheduler, disk and console threads, are created by threads
+    // of their kernel and so inherit it; several kernels, each with its
+    // own threads, files and counters, can run side by side in one JVM,
+    // given a disk image each with the disk= boot option
+    private final static InheritableThreadLocal<Kernel> current
+	= new InheritableThreadLocal<Kernel>( );
+
+    // kernels booted so far, which numbers them for JFR events
+    private final static AtomicInteger booted = new AtomicInteger( );
+    private final int id = booted.incrementAndGet( );
+
+    // Disk images of the kernels booted so far, as absolute host paths.
+    // An image is held by its kernel for as long as the JVM runs, so no
+    // two kernels ever sync to the same file
+    private final static HashSet<String> images = new HashSet<String>( );
+
+    // Whether a kernel has booted with virtual threads, after which the
+    // JVM has made its carriers and carriers= no longer has an effect
+    private static boolean carriersSet = false;
+
     // System thread references
-    private static Scheduler scheduler;
-    private static Disk disk;
-    private static Cache cache;
-    private static FileSystem fs;
+    private Scheduler scheduler;
+    private Disk disk;
+    private Cache cache;
+    private FileSystem fs;
+    private final ProgramRegistry programs = new ProgramRegistry( );
+    private final SharedMemory shm = new SharedMemory( );
+
+    // system calls, with their latencies, and disk transfers since boot
+    private final Metrics metrics = new Metrics( SYSCALL_NAMES );
+    private final LongAdder diskReads = new LongAdder( );
+    private final LongAdder diskWrites = new LongAdder( );
+    private final AtomicInteger ioWaiters = new AtomicInteger( );
 	
+    // Children that have exited and not yet been joined, by thread id,
+    // and the lock that keeps a child's exit and its parent's in order
+    private final HashMap<Integer, TCB> zombies = new HashMap<Integer, TCB>( );
+    private final Object exitLock = new Object( );
+
     // Synchronized Queues
-    private static SyncQueue waitQueue;  // for threads to wait for their child
-    private static SyncQueue ioQueue;    // I/O queue
+    private WaitQueue waitQueue;  // for threads to wait for their child
+    private SyncQueue ioQueue;    // I/O queue
 
     private final static int COND_DISK_REQ = 1; // wait condition 
     private final static int COND_DISK_FIN = 2; // wait condition
 
-    // Standard input
+    // Virtual thread factory, Thread.ofVirtual( ) and its unstarted( ),
+    // set at boot with threads=virtual
+    private Object virtualBuilder = null;
+    private Method virtualUnstarted = null;
+
+    // Standard input, the JVM's, which every kernel shares
     private static BufferedReader input
 	= new BufferedReader( new InputStreamReader( System.in ) );
 
-    // The heart of Kernel
+    // Standard output and error, see Console
+    private Console console;
+
+    // A system call handler. 'myTcb' is the caller's TCB, or null if
+    // the caller is not a user thread; primitive arguments beyond
+    // 'param' are in myTcb.getArgs( )
+    private interface Syscall {
+	int call( TCB myTcb, int param, Object args );
+    }
+
+    // System call handlers indexed by system call number
+    private final Syscall[] syscalls = new Syscall[ CLOEXEC + 1 ];
+    {
+	syscalls[BOOT]     = this::sysBoot;
+	syscalls[EXEC]     = ( tcb, param, args ) ->
+	    sysExec( tcb, ( String[] )args );
+	syscalls[WAIT]     = this::sysWait;
+	syscalls[EXIT]     = this::sysExit;
+	syscalls[SLEEP]    = this::sysSleep;
+	syscalls[RAWREAD]  = this::sysRawRead;
+	syscalls[RAWWRITE] = this::sysRawWrite;
+	syscalls[SYNC]     = this::sysSync;
+	syscalls[READ]     = this::sysRead;
+	syscalls[WRITE]    = this::sysWrite;
+	syscalls[CREAD]    = ( tcb, param, args ) ->
+	    cache.read( param, ( byte[] )args ) ? OK : ERROR;
+	syscalls[CWRITE]   = ( tcb, param, args ) ->
+	    cache.write( param, ( byte[] )args ) ? OK : ERROR;
+	syscalls[CSYNC]    = ( tcb, param, args ) -> { cache.sync( ); return OK; };
+	syscalls[CFLUSH]   = ( tcb, param, args ) -> { cache.flush( ); return OK; };
+	syscalls[OPEN]     = this::sysOpen;
+	syscalls[CLOSE]    = this::sysClose;
+	syscalls[SIZE]     = ( tcb, param, args ) ->
+	    fs.fsize( tcb.getFtEnt( param ) );
+	syscalls[SEEK]     = this::sysSeek;
+	syscalls[FORMAT]   = ( tcb, param, args ) -> fs.format( param );
+	syscalls[DELETE]   = ( tcb, param, args ) -> {
+	    fs.delete( ( String )args );
+	    return OK;
+	};
+	syscalls[MMAP]     = this::sysMmap;
+	syscalls[MSYNC]    = ( tcb, param, args ) ->
+	    fs.msync( ( MappedFile )args );
+	syscalls[MUNMAP]   = ( tcb, param, args ) ->
+	    fs.munmap( ( MappedFile )args );
+	syscalls[SCHED]    = this::sysSched;
+	syscalls[PS]       = ( tcb, param, args ) ->
+	    scheduler.snapshot( ( Vector )args );
+	syscalls[SUBMIT]   = this::sysSubmit;
+	syscalls[PROGSTAT] = ( tcb, param, args ) ->
+	    programs.report( ( Vector )args );
+	syscalls[DUP]      = this::sysDup;
+	syscalls[PIPE]     = this::sysPipe;
+	syscalls[SHMGET]   = ( tcb, param, args ) -> {
+	    Object[] io = ( Object[] )args;   // { name, view }
+	    io[1] = shm.get( ( String )io[0], param );
+	    return ( io[1] != null ) ? OK : ERROR;
+	};
+	syscalls[SHMRM]    = ( tcb, param, args ) ->
+	    shm.remove( ( String )args ) ? OK : ERROR;
+	syscalls[STAT]     = ( tcb, param, args ) -> stat( ( long[] )args );
+	syscalls[METRICS]  = ( tcb, param, args ) ->
+	    metrics.report( ( Vector )args );
+	syscalls[TRACE]    = ( tcb, param, args ) ->
+	    metrics.dump( ( String )args );
+	syscalls[CLOEXEC]  = ( tcb, param, args ) ->
+	    tcb.setCloseOnExec( param ) ? OK : ERROR;
+    }
+
+    // File modes as passed in the argument block by SysLib.open( )
+    public final static String[] MODES = { "r", "w", "w+", "a" };
+
+    // The heart of Kernel. SysLib.boot( ) gives the calling thread a new
+    // kernel; anything else goes to the calling thread's kernel, and
+    // fails if it has none
     public static int interrupt( int irq, int cmd, int param, Object args ) {
-	TCB myTcb;
-	FileTableEntry fEnt;
+	Kernel kernel;
+	if ( irq == INTERRUPT_SOFTWARE && cmd == BOOT ) {
+	    // a kernel that fails to boot leaves the caller with the one
+	    // it had, if any
+	    Kernel previous = current.get( );
+	    kernel = new Kernel( );
+	    current.set( kernel );
+	    int result = kernel.handle( irq, cmd, param, args );
+	    if ( result == ERROR )
+		current.set( previous );
+	    return result;
+	}
+	else if ( ( kernel = current.get( ) ) == null )
+	    return ERROR;
+	return kernel.handle( irq, cmd, param, args );
+    }
+
+    private int handle( int irq, int cmd, int param, Object args ) {
 	switch( irq ) {
 	case INTERRUPT_SOFTWARE: // System calls
-	    switch( cmd ) { 
-	    case BOOT:
-		// instantiate and start a scheduler
-		scheduler = new Scheduler( ); 
-		scheduler.start( );
-
-		// instantiate and start a disk
-		disk = new Disk( 1000 );
-		disk.start( );
-
-		// instantiate a cache memory
-		cache = new Cache( disk.blockSize, 10 );
-
-		// instantiate synchronized queues
-		ioQueue = new SyncQueue( );
-		waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
-
-		// Instantiate a file system into main memory
-		fs = new FileSystem( 1000 );
-
-		return OK;
-	    case EXEC:
-		return sysExec( ( String[] )args );
-	    case WAIT:
-		if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
-		    int myTid = myTcb.getTid( ); // get my thread ID
-		    return waitQueue.enqueueAndSleep( myTid ); //wait on my tid
-		    // woken up by my child thread
-		}
-		return ERROR;
-	    case EXIT:
-		if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
-		    int myPid = myTcb.getPid( ); // get my parent ID
-		    int myTid = myTcb.getTid( ); // get my ID
-		    if ( myPid != -1 ) {
-			// wake up a thread waiting on my parent ID
-			waitQueue.dequeueAndWakeup( myPid, myTid );
-			// I'm terminated!
-			scheduler.deleteThread( );
-			return OK;
-		    }
-		   
-		}
-		return ERROR;
-	    case SLEEP:   // sleep a given period of milliseconds
-		scheduler.sleepThread( param ); // param = milliseconds
-		return OK;
-	    case RAWREAD: // read a block of data from dis
-		while ( disk.read( param, ( byte[] )args ) == false )
-		    ioQueue.enqueueAndSleep( COND_DISK_REQ );
-		while ( disk.testAndResetReady( ) == false )
-		    ioQueue.enqueueAndSleep( COND_DISK_FIN );
-		return OK;
-	    case RAWWRITE: // write a block of data to disk
-		while ( disk.write( param, ( byte[] )args ) == false )
-		    ioQueue.enqueueAndSleep( COND_DISK_REQ );
-		while ( disk.testAndResetReady( ) == false )
-		    ioQueue.enqueueAndSleep( COND_DISK_FIN );
-		return OK;
-	    case SYNC:     // synchronize disk data to a real file
-		while ( disk.sync( ) == false )
-		    ioQueue.enqueueAndSleep( COND_DISK_REQ );
-		while ( disk.testAndResetReady( ) == false )
-		    ioQueue.enqueueAndSleep( COND_DISK_FIN );
-		return fs.syncSuperBlock( );
-	    case READ:
-		switch ( param ) {
-		case STDIN:
-		    try {
-			String s = input.readLine(); // read a keyboard input
-			if ( s == null ) {
-			    return ERROR;
-			}
-			// prepare a read buffer
-			StringBuffer buf = ( StringBuffer )args;
-
-			// append the keyboard intput to this read buffer
-			buf.append( s ); 
-
-			// return the number of chars read from keyboard
-			return s.length( );
-		    } catch ( IOException e ) {
-			System.out.println( e );
-			return ERROR;
-		    }
-		case STDOUT:
-		case STDERR:
-		    System.out.println( "threaOS: caused read errors" );
-		    return ERROR;
-		default:
-		   fEnt = scheduler.getMyTcb( ).getFtEnt( param );
-		   return fs.read( fEnt, ( byte[ ] )args );
-		}
-	    case WRITE:
-		switch ( param ) {
-		case STDIN:
-		    System.out.println( "threaOS: cannot write to System.in" );
-		    return ERROR;
-		case STDOUT:
-		    System.out.print( (String)args );
-		    return OK;
-		case STDERR:
-		    System.err.print( (String)args );
-		    return OK;
-		default:
-		   fEnt = scheduler.getMyTcb( ).getFtEnt( param );
-		   return fs.write( fEnt, ( byte[ ] )args );
-		}
-	    case CREAD:
-		return cache.read( param, ( byte[] )args ) ? OK : ERROR;
-	    case CWRITE:
-		return cache.write( param, ( byte[] )args ) ? OK : ERROR;
-	    case CSYNC:
-		cache.sync( );
-		return OK;
-	    case CFLUSH:
-		cache.flush( );
-		return OK;
-	    case OPEN:
+	    TCB myTcb = null;
+	    if ( cmd != BOOT ) {
 		myTcb = scheduler.getMyTcb( );
-		String[ ] s = ( String[ ] )args;
-		return myTcb.getFd( fs.open( s[ 0 ], s[ 1 ] ) );
-	    case CLOSE:
-		myTcb = scheduler.getMyTcb( );
-		fEnt = myTcb.getFtEnt( param );
-		int successclose = fs.close( fEnt );
-		if( successclose == 0 ) 
-			myTcb.returnFd( param );
-
-		return successclose;
-	    case SIZE:
-		fEnt = scheduler.getMyTcb( ).getFtEnt( param );
-		return fs.fsize( fEnt );
-	    case SEEK:
-		fEnt = scheduler.getMyTcb( ).getFtEnt( param );
-		if( fEnt == null ) 
-			return ERROR;
-		Integer[ ] ps = ( Integer[ ] )args;
-		return fs.seek( fEnt, ps[ 0 ].intValue( ),
-				 ps[ 1 ].intValue( ) );
-
-	    case FORMAT:
-		return fs.format( param );
-	    case DELETE:
-		myTcb = scheduler.getMyTcb( );
-		fs.delete( ( String )args );
-		return OK;
+		yieldPoint( myTcb ); // wait here if preempted
 	    }
-	    return ERROR;
+	    return systemCall( myTcb, cmd, param, args );
 	case INTERRUPT_DISK: // Disk interrupts
 	    // wake up the thread waiting for a service completion
 	    ioQueue.dequeueAndWakeup( COND_DISK_FIN );
@@ -231,37 +278,828 @@ public class Kernel
 	return OK;
     }
 
-    // Spawning a new thread
-    private static int sysExec( String args[] ) {
-	String thrName = args[0]; // args[0] has a thread name
-	Object thrObj = null;
+    // A system call with two more int arguments, which are passed in
+    // the caller's argument block rather than boxed, so a call such as
+    // SysLib.seek( ) allocates nothing. Only user threads can make one
+    public static int syscall( int cmd, int param, int arg0, int arg1,
+			       Object args ) {
+	Kernel kernel = current.get( );
+	if ( kernel == null )
+	    return ERROR;
+	return kernel.handle( cmd, param, arg0, arg1, args );
+    }
 
+    private int handle( int cmd, int param, int arg0, int arg1,
+			Object args ) {
+	TCB myTcb = scheduler.getMyTcb( );
+	if ( myTcb == null )
+	    return ERROR;
+	yieldPoint( myTcb ); // wait here if preempted
+	int[] block = myTcb.getArgs( );
+	block[0] = arg0;
+	block[1] = arg1;
+	return systemCall( myTcb, cmd, param, args );
+    }
+
+    // Stops a preempted thread on its way into a system call, unless the
+    // call is one the kernel is making itself inside another, when it
+    // may hold a monitor such as the cache's that other threads need
+    private void yieldPoint( TCB myTcb ) {
+	if ( myTcb != null && myTcb.getSyscallDepth( ) == 0 )
+	    scheduler.yieldPoint( myTcb );
+    }
+
+    private int systemCall( TCB myTcb, int cmd, int param,
+			    Object args ) {
+	if ( cmd < 0 || cmd >= syscalls.length )
+	    return ERROR;
+	if ( myTcb == null && needsTcb( cmd ) )
+	    return ERROR;
+
+	if ( myTcb == null )
+	    return timedCall( myTcb, cmd, param, args );
+	if ( myTcb.getSyscallDepth( ) > 0 ) {
+	    // made by the kernel inside another call, whose time it is part of
+	    myTcb.enterSyscall( );
+	    try {
+		return syscalls[cmd].call( myTcb, param, args );
+	    }
+	    finally {
+		myTcb.leaveSyscall( );
+	    }
+	}
+	myTcb.enterSyscall( );
 	try {
-	    //get the user thread class from its name
-	    Class thrClass = Class.forName( thrName ); 
-	    if ( args.length == 1 ) // no arguments
-		thrObj = thrClass.newInstance( ); // instantiate this class obj
-	    else {                  // some arguments
-                // copy all arguments into thrArgs[] and make a new constructor
-                // argument object from thrArgs[]
-		String thrArgs[] = new String[ args.length - 1 ];
-		for ( int i = 1; i < args.length; i++ )
-		    thrArgs[i - 1] = args[i];
-		Object[] constructorArgs = new Object[] { thrArgs };
-
-		// locate this class object's constructors
-		Constructor thrConst 
-		    = thrClass.getConstructor( new Class[] {String[].class} );
-
-		// instantiate this class object by calling this constructor
-                // with arguments
-		thrObj = thrConst.newInstance( constructorArgs );
+	    return timedCall( myTcb, cmd, param, args );
+	}
+	finally {
+	    myTcb.leaveSyscall( );
+	}
+    }
+
+    // Makes a system call, counting it and, if it is one the metrics
+    // sample, timing it. If a recording wants them it also makes a JFR
+    // event of the call; only then, so calls allocate nothing otherwise
+    private int timedCall( TCB myTcb, int cmd, int param, Object args ) {
+	boolean timed = metrics.count( cmd );
+	if ( !timed && !SyscallEvent.enabled )
+	    return syscalls[cmd].call( myTcb, param, args );
+
+	SyscallEvent event = null;
+	if ( SyscallEvent.enabled ) {
+	    event = new SyscallEvent( );
+	    event.begin( );
+	}
+	long start = System.nanoTime( );
+	int result = syscalls[cmd].call( myTcb, param, args );
+	if ( timed )
+	    metrics.syscall( cmd, myTcb, param, result, start,
+			     System.nanoTime( ) - start );
+	if ( event != null && event.shouldCommit( ) ) {
+	    event.kernel = id;
+	    event.name = SYSCALL_NAMES[cmd];
+	    event.tid = ( myTcb != null ) ? myTcb.getTid( ) : -1;
+	    event.param = param;
+	    event.result = result;
+	    event.commit( );
+	}
+	return result;
+    }
+
+    // System calls that act on the caller's own state or files
+    private static boolean needsTcb( int cmd ) {
+	return cmd == WAIT || cmd == EXIT || cmd == OPEN || cmd == CLOSE
+	    || cmd == SIZE || cmd == SEEK || cmd == MMAP || cmd == SCHED
+	    || cmd == SUBMIT || cmd == DUP || cmd == PIPE || cmd == CLOEXEC;
+    }
+
+    private int sysBoot( TCB myTcb, int param, Object args ) {
+	Properties options = bootOptions( ( String[ ] )args );
+
+	// claim a disk image no other kernel is using
+	String image = options.getProperty( "disk", "DISK" );
+	if ( !claimImage( image ) ) {
+	    System.out.println( "threadOS: disk " + image +
+				" is in use by another kernel" );
+	    return ERROR;
+	}
+
+	// pick the kind of thread user programs run on
+	boolean virtual = options.getProperty( "threads", "platform" )
+	    .equals( "virtual" ) && bootVirtualThreads( options );
+
+	// instantiate and start a scheduler
+	scheduler = new Scheduler( Scheduler.DEFAULT_TIME_SLICE,
+	    Integer.parseInt( options.getProperty( "maxthreads",
+		"" + Scheduler.DEFAULT_MAX_THREADS ) ) ); 
+	scheduler.setParkDispatch( virtual ||
+	    options.getProperty( "dispatch", "suspend" ).equals( "park" ) );
+	scheduler.setProcessors(
+	    Integer.parseInt( options.getProperty( "cpus", "1" ) ) );
+	scheduler.setTickless(
+	    options.getProperty( "tickless", "false" ).equals( "true" ) );
+	scheduler.setMlfq( mlfqQuanta( options.getProperty( "quanta" ) ),
+	    Integer.parseInt( options.getProperty( "boost",
+		"" + Scheduler.DEFAULT_TIME_SLICE * 5 ) ) );
+	if ( !scheduler.setPolicy( options.getProperty( "policy", "mlfq" ) ) )
+	    System.out.println( "threadOS: unknown policy, using mlfq" );
+	scheduler.start( );
+
+	// instantiate and start a disk. Disk keeps its blocks in DISK, so
+	// any other image is kept by an ImageDisk
+	disk = image.equals( "DISK" ) ? new Disk( 1000 )
+	    : new ImageDisk( 1000, image );
+	disk.start( );
+
+	// instantiate a cache memory
+	cache = new Cache( disk.blockSize, 10 );
+
+	// instantiate synchronized queues
+	ioQueue = new SyncQueue( );
+	waitQueue = new WaitQueue( scheduler );
+
+	// Instantiate a file system into main memory
+	fs = new FileSystem( 1000 );
+
+	// start the console, copying to a file if asked to
+	console = new Console( System.out, System.err,
+	    Integer.parseInt( options.getProperty( "conslines",
+		"" + Console.DEFAULT_CAPACITY ) ) );
+	if ( options.getProperty( "mirror" ) != null )
+	    console.mirror( fs, options.getProperty( "mirror" ) );
+	console.start( );
+
+	// time as many system calls, and keep a trace of the last ones, as
+	// asked to, and say which gauges the metrics show
+	if ( options.getProperty( "sample" ) != null )
+	    metrics.sample( Integer.parseInt( options.getProperty( "sample" ) ) );
+	if ( options.getProperty( "trace" ) != null )
+	    metrics.trace( Integer.parseInt( options.getProperty( "trace" ) ) );
+	bootGauges( );
+
+	// load the programs named to be loaded up front
+	StringTokenizer preload
+	    = new StringTokenizer( options.getProperty( "preload", "" ), "," );
+	while ( preload.hasMoreTokens( ) ) {
+	    String name = preload.nextToken( );
+	    try {
+		programs.preload( name );
+	    }
+	    catch ( ClassNotFoundException e ) {
+		System.out.println( "threadOS: cannot preload " + name );
 	    }
+	}
+
+	return OK;
+    }
+
+    private int sysWait( TCB myTcb, int param, Object args ) {
+	int myTid = myTcb.getTid( ); // get my thread ID
+	myTcb.beginWait( System.nanoTime( ) );
+	int child = waitQueue.enqueueAndSleep( myTid ); //wait on my tid
+	// woken up by my child thread
+	myTcb.endWait( System.nanoTime( ), false );
+	reap( child );
+	return child;
+    }
+
+    // Lets the id of exited child 'tid' be reused, now that it has been
+    // joined or no longer can be
+    private void reap( int tid ) {
+	TCB zombie;
+	synchronized ( exitLock ) {
+	    zombie = zombies.remove( tid );
+	}
+	if ( zombie != null )
+	    scheduler.releaseTid( zombie );
+    }
+
+    private int sysExit( TCB myTcb, int param, Object args ) {
+	int myPid = myTcb.getPid( ); // get my parent ID
+	int myTid = myTcb.getTid( ); // get my ID
+
+	// print what I wrote without a newline at the end
+	console.flush( myTcb );
+
+	// close whatever I left open, inherited descriptors included
+	FileTableEntry[] open = myTcb.returnAllFds( );
+	for ( int fd = 0; fd < open.length; fd++ )
+	    if ( open[fd] != null )
+		fs.close( open[fd] );
+
+	TCB parent = myTcb.getParent( );
+	boolean orphan = true;
+	Vector<Integer> unjoined;
+	synchronized ( exitLock ) {
+	    // wake up a thread waiting on my parent ID, unless my parent
+	    // has exited, when nobody can join me
+	    if ( parent != null && !parent.hasExited( ) ) {
+		orphan = false;
+		zombies.put( myTid, myTcb );
+		waitQueue.dequeueAndWakeup( myPid, myTid );
+	    }
+	    // my ID may be reused, drop wakeups nobody joined; children
+	    // exiting after this do not wake me
+	    myTcb.setExited( );
+	    unjoined = waitQueue.forget( myTid );
+	}
+	for ( int i = 0; i < unjoined.size( ); i++ )
+	    reap( unjoined.elementAt( i ) );
+
+	if ( myPid != -1 ) {
+	    if ( orphan )
+		scheduler.releaseTid( myTcb );
+	    // I'm terminated!
+	    scheduler.deleteThread( );
+	    return OK;
+	}
+	return ERROR;
+    }
+
+    private int sysSleep( TCB myTcb, int param, Object args ) {
+	scheduler.sleepThread( param ); // param = milliseconds
+	return OK;
+    }
+
+    // Raw transfers go around the cache, so to keep them from seeing or
+    // leaving a stale block, a read is served from a block written to
+    // the cache and not yet to disk, and a write updates the cached copy
+    // of its block
+    private int sysRawRead( TCB myTcb, int param, Object args ) {
+	if ( cache.readDirty( param, ( byte[] )args ) )
+	    return OK;
+	diskReads.increment( );
+	while ( disk.read( param, ( byte[] )args ) == false )
+	    ioWait( COND_DISK_REQ );
+	while ( disk.testAndResetReady( ) == false )
+	    ioWait( COND_DISK_FIN );
+	return OK;
+    }
+
+    private int sysRawWrite( TCB myTcb, int param, Object args ) {
+	diskWrites.increment( );
+	while ( disk.write( param, ( byte[] )args ) == false )
+	    ioWait( COND_DISK_REQ );
+	while ( disk.testAndResetReady( ) == false )
+	    ioWait( COND_DISK_FIN );
+	cache.written( param, ( byte[] )args );
+	return OK;
+    }
+
+    // synchronize disk data to a real file
+    private int sysSync( TCB myTcb, int param, Object args ) {
+	int synced = fs.sync( ); // write back delayed blocks first
+	while ( disk.sync( ) == false )
+	    ioWait( COND_DISK_REQ );
+	while ( disk.testAndResetReady( ) == false )
+	    ioWait( COND_DISK_FIN );
+	return synced;
+    }
+
+    private int sysRead( TCB myTcb, int param, Object args ) {
+	if ( param <= STDERR && redirected( myTcb, param ) ) {
+	    FileTableEntry fEnt = myTcb.getFtEnt( param );
+	    if ( args instanceof StringBuffer )
+		return readLine( fEnt, ( StringBuffer )args );
+	    return fs.read( fEnt, ( byte[ ] )args );
+	}
+
+	switch ( param ) {
+	case STDIN:
+	    try {
+		// show the prompt, if any, before waiting for input
+		if ( myTcb != null )
+		    console.flush( myTcb );
+		console.drain( 0 );
+
+		if ( myTcb != null )
+		    myTcb.beginWait( System.nanoTime( ) );
+		String s = input.readLine(); // read a keyboard input
+		if ( myTcb != null )
+		    myTcb.endWait( System.nanoTime( ), false );
+		if ( s == null ) {
+		    return ERROR;
+		}
+		// prepare a read buffer
+		StringBuffer buf = ( StringBuffer )args;
+
+		// append the keyboard intput to this read buffer
+		buf.append( s ); 
+
+		// return the number of chars read from keyboard
+		return s.length( );
+	    } catch ( IOException e ) {
+		System.out.println( e );
+		return ERROR;
+	    }
+	case STDOUT:
+	case STDERR:
+	    System.out.println( "threaOS: caused read errors" );
+	    return ERROR;
+	default:
+	    if ( myTcb == null )
+		return ERROR;
+	    return fs.read( myTcb.getFtEnt( param ), ( byte[ ] )args );
+	}
+    }
+
+    private int sysWrite( TCB myTcb, int param, Object args ) {
+	if ( param <= STDERR && redirected( myTcb, param ) ) {
+	    FileTableEntry fEnt = myTcb.getFtEnt( param );
+	    if ( args instanceof String )
+		return fs.write( fEnt, ( ( String )args ).getBytes( ) ) < 0
+		    ? ERROR : OK;
+	    return fs.write( fEnt, ( byte[ ] )args );
+	}
+
+	switch ( param ) {
+	case STDIN:
+	    System.out.println( "threaOS: cannot write to System.in" );
+	    return ERROR;
+	case STDOUT:
+	case STDERR:
+	    console.write( myTcb, param, (String)args );
+	    return OK;
+	default:
+	    if ( myTcb == null )
+		return ERROR;
+	    return fs.write( myTcb.getFtEnt( param ), ( byte[ ] )args );
+	}
+    }
+
+    // true if 'fd', one of STDIN, STDOUT and STDERR, has been pointed
+    // at a pipe or file with dup2( ) rather than the console
+    private boolean redirected( TCB myTcb, int fd ) {
+	return myTcb != null && fd >= 0 && myTcb.getFtEnt( fd ) != null;
+    }
+
+    // cin( ) from a pipe or file: appends the next line to 'buf',
+    // without its newline, and returns its length, or ERROR at the
+    // end of input
+    private int readLine( FileTableEntry fEnt, StringBuffer buf ) {
+	ByteArrayOutputStream line = new ByteArrayOutputStream( );
+	byte[] one = new byte[1];
+	int got;
+	while ( ( got = fs.read( fEnt, one ) ) == 1 && one[0] != '\n' )
+	    line.write( one[0] );
+	if ( got != 1 && line.size( ) == 0 )
+	    return ERROR;
+	String s = line.toString( );
+	buf.append( s );
+	return s.length( );
+    }
+
+    // the mode is MODES[ myTcb.getArgs( )[ 0 ] ] when made through
+    // syscall( ), or args is { fileName, mode }
+    private int sysOpen( TCB myTcb, int param, Object args ) {
+	String fileName, mode;
+	if ( args instanceof String[] ) {
+	    String[ ] s = ( String[ ] )args;
+	    fileName = s[ 0 ];
+	    mode = s[ 1 ];
+	}
+	else {
+	    int m = myTcb.getArgs( )[0];
+	    if ( m < 0 || m >= MODES.length )
+		return ERROR;
+	    fileName = ( String )args;
+	    mode = MODES[m];
+	}
+	FileTableEntry fEnt = fs.open( fileName, mode );
+	int fd = myTcb.getFd( fEnt );
+	if ( fd == ERROR && fEnt != null )
+	    fs.close( fEnt );       // out of descriptors
+	return fd;
+    }
+
+    // dup( ) when the argument block holds -1: 'param' gets a second
+    // descriptor, the lowest free one. dup2( ) otherwise: the block
+    // holds the descriptor to use, which is closed first if open.
+    // Either way both descriptors share one file table entry, seek
+    // pointer included
+    private int sysDup( TCB myTcb, int param, Object args ) {
+	FileTableEntry fEnt = myTcb.getFtEnt( param );
+	int fd = myTcb.getArgs( )[0];
+	if ( fEnt == null )
+	    return ERROR;
+	if ( fd == param )
+	    return fd;
+	if ( fd != -1 && ( fd < 0 || fd >= TCB.MAX_FDS ) )
+	    return ERROR;
+
+	fs.dup( fEnt );
+	if ( fd == -1 ) {
+	    fd = myTcb.getFd( fEnt );
+	    if ( fd == ERROR )
+		fs.close( fEnt );
+	    return fd;
+	}
+	FileTableEntry oldEnt = myTcb.setFd( fd, fEnt );
+	if ( oldEnt != null )
+	    fs.close( oldEnt );
+	return fd;
+    }
+
+    // Makes a pipe of 'param' bytes, or the default size if 'param' is
+    // 0, and puts descriptors for its read and write ends in args[0]
+    // and args[1]
+    private int sysPipe( TCB myTcb, int param, Object args ) {
+	int[] fds = ( int[] )args;
+	if ( param < 0 || param > SharedMemory.MAX_SIZE )
+	    return ERROR;
+	Pipe pipe = new Pipe( scheduler, param > 0 ? param : Pipe.DEFAULT_SIZE );
+	fds[0] = myTcb.getFd( pipe.readEnd );
+	if ( fds[0] == ERROR )
+	    return ERROR;
+	fds[1] = myTcb.getFd( pipe.writeEnd );
+	if ( fds[1] == ERROR ) {
+	    myTcb.returnFd( fds[0] );
+	    return ERROR;
+	}
+	return OK;
+    }
+
+    private int sysClose( TCB myTcb, int param, Object args ) {
+	FileTableEntry fEnt = myTcb.getFtEnt( param );
+	int successclose = fs.close( fEnt );
+	if( successclose == 0 ) 
+		myTcb.returnFd( param );
+
+	return successclose;
+    }
+
+    // the offset and whence are in the argument block when made through
+    // syscall( ), or args is { offset, whence }
+    private int sysSeek( TCB myTcb, int param, Object args ) {
+	FileTableEntry fEnt = myTcb.getFtEnt( param );
+	if( fEnt == null ) 
+		return ERROR;
+	if ( args != null ) {
+	    Integer[ ] ps = ( Integer[ ] )args;
+	    return fs.seek( fEnt, ps[ 0 ].intValue( ),
+			     ps[ 1 ].intValue( ) );
+	}
+	int[] block = myTcb.getArgs( );
+	return fs.seek( fEnt, block[0], block[1] );
+    }
+
+    private int sysMmap( TCB myTcb, int param, Object args ) {
+	FileTableEntry fEnt = myTcb.getFtEnt( param );
+	MappedFile[ ] view = ( MappedFile[ ] )args;
+	view[ 0 ] = fs.mmap( fEnt );
+	return ( view[ 0 ] != null ) ? OK : ERROR;
+    }
+
+    private int sysSched( TCB myTcb, int param, Object args ) {
+	if ( "tickets".equals( args ) )
+	    myTcb.setTickets( param );
+	else if ( "deadline".equals( args ) )
+	    myTcb.setDeadline( param );
+	else
+	    return ERROR;
+	scheduler.requeueThread( myTcb );
+	return OK;
+    }
+
+    // Runs every operation queued on an IoRing, posting a completion
+    // for each in queue order, and returns how many ran. Back to back
+    // cache operations are sorted by block and back to back reads or
+    // writes on one file are merged, see submitCache( ) and submitFile( )
+    private int sysSubmit( TCB myTcb, int param, Object args ) {
+	IoRing ring = ( IoRing )args;
+	int n = ring.queued( );
+	int[] results = new int[n];
+
+	int i = 0;
+	while ( i < n ) {
+	    int op = ring.sqOp[ring.slot( i )];
+	    int fd = ring.sqArg[ring.slot( i )];
+	    int end = i + 1;
+	    if ( op == CREAD || op == CWRITE ) {
+		while ( end < n && ( ring.sqOp[ring.slot( end )] == CREAD
+				     || ring.sqOp[ring.slot( end )] == CWRITE ) )
+		    end++;
+		submitCache( ring, i, end, results );
+	    }
+	    else if ( ( op == READ || op == WRITE ) && fd > STDERR ) {
+		while ( end < n && ring.sqOp[ring.slot( end )] == op
+			&& ring.sqArg[ring.slot( end )] == fd )
+		    end++;
+		submitFile( myTcb, ring, i, end, results );
+	    }
+	    else
+		results[i] = submitOne( myTcb, ring, ring.slot( i ) );
+	    i = end;
+	}
+
+	for ( i = 0; i < n; i++ )
+	    ring.complete( results[i] );
+	return n;
+    }
+
+    // Runs queued cache operations 'from' to 'to' in block order, each
+    // block once: reads after the first are copied from what the last
+    // read or write left in the block, and only the last write to it
+    // goes to the cache. Blocks are independent, so only the order of
+    // operations on the same block has to be kept
+    private void submitCache( IoRing ring, int from, int to,
+			      int[] results ) {
+	int n = to - from;
+	long[] order = new long[n];   // block in the high half, index low
+	for ( int k = 0; k < n; k++ )
+	    order[k] = ( ( long )ring.sqArg[ring.slot( from + k )] << 32 ) | k;
+	Arrays.sort( order );
+
+	int k = 0;
+	while ( k < n ) {
+	    int blk = ( int )( order[k] >> 32 );
+	    byte[] latest = null;     // the block as these operations left it
+	    boolean written = false;
+	    int g = k;
+	    for ( ; g < n && ( int )( order[g] >> 32 ) == blk; g++ ) {
+		int index = from + ( int )( order[g] & 0xffffffffL );
+		int slot = ring.slot( index );
+		byte[] buf = ( byte[] )ring.sqBuf[slot];
+		if ( ring.sqOp[slot] == CWRITE ) {
+		    latest = buf;
+		    written = true;
+		    results[index] = OK;
+		}
+		else if ( latest != null ) {
+		    System.arraycopy( latest, 0, buf, 0,
+				      Math.min( latest.length, buf.length ) );
+		    results[index] = OK;
+		}
+		else if ( cache.read( blk, buf ) ) {
+		    latest = buf;
+		    results[index] = OK;
+		}
+		else
+		    results[index] = ERROR;
+	    }
+
+	    if ( written && !cache.write( blk, latest ) )
+		for ( int w = k; w < g; w++ ) {
+		    int index = from + ( int )( order[w] & 0xffffffffL );
+		    if ( ring.sqOp[ring.slot( index )] == CWRITE )
+			results[index] = ERROR;
+		}
+	    k = g;
+	}
+    }
+
+    // Runs queued reads, or writes, 'from' to 'to' on one file as a
+    // single read or write of all their buffers end to end, which is
+    // what doing them one after another would do, then shares the
+    // bytes transferred out among them in order
+    private void submitFile( TCB myTcb, IoRing ring, int from, int to,
+			     int[] results ) {
+	// a pipe read returns what is there, not what would fill the
+	// buffers, so reads from a pipe are done one at a time
+	FileTableEntry fEnt = myTcb.getFtEnt( ring.sqArg[ring.slot( from )] );
+	if ( to - from == 1 || fEnt instanceof PipeEnd ) {
+	    for ( int k = from; k < to; k++ )
+		results[k] = submitOne( myTcb, ring, ring.slot( k ) );
+	    return;
+	}
+
+	int op = ring.sqOp[ring.slot( from )];
+	int total = 0;
+	for ( int k = from; k < to; k++ )
+	    total += ( ( byte[] )ring.sqBuf[ring.slot( k )] ).length;
+
+	byte[] merged = new byte[total];
+	int done;
+	if ( op == WRITE ) {
+	    for ( int k = from, pos = 0; k < to; k++ ) {
+		byte[] buf = ( byte[] )ring.sqBuf[ring.slot( k )];
+		System.arraycopy( buf, 0, merged, pos, buf.length );
+		pos += buf.length;
+	    }
+	    done = fs.write( fEnt, merged );
+	}
+	else
+	    done = fs.read( fEnt, merged );
+
+	for ( int k = from, pos = 0; k < to; k++ ) {
+	    byte[] buf = ( byte[] )ring.sqBuf[ring.slot( k )];
+	    int got = ( done < 0 ? -1
+			: Math.max( 0, Math.min( buf.length, done - pos ) ) );
+	    if ( op == READ && got > 0 )
+		System.arraycopy( merged, pos, buf, 0, got );
+	    if ( op == WRITE && got == 0 && buf.length > 0 )
+		got = ERROR;        // as fs.write( ) reports nothing written
+	    results[k] = got;
+	    pos += buf.length;
+	}
+    }
+
+    // Runs one queued operation as the system call it stands for
+    private int submitOne( TCB myTcb, IoRing ring, int slot ) {
+	int op = ring.sqOp[slot];
+	int arg = ring.sqArg[slot];
+	Object buf = ring.sqBuf[slot];
+	if ( op == OPEN )
+	    myTcb.getArgs( )[0] = ring.sqMode[slot];
+	else if ( op == READ && arg <= STDERR )
+	    return ERROR;           // console input is not a byte[] read
+	else if ( op == WRITE && ( arg == STDOUT || arg == STDERR ) )
+	    buf = new String( ( byte[] )buf );
+	return systemCall( myTcb, op, arg, buf );
+    }
+
+    // Fills in as many of the kernel counters as 'counters' has room
+    // for and returns how many that was
+    private int stat( long[] counters ) {
+	long[] all = new long[STAT_SIZE];
+	all[STAT_SYSCALLS] = metrics.total( );
+	all[STAT_DISK_READS] = diskReads.sum( );
+	all[STAT_DISK_WRITES] = diskWrites.sum( );
+	all[STAT_CACHE_HITS] = cache.getHits( );
+	all[STAT_CACHE_MISSES] = cache.getMisses( );
+	all[STAT_SWITCHES] = scheduler.getContextSwitches( );
+	int n = Math.min( counters.length, STAT_SIZE );
+	System.arraycopy( all, 0, counters, 0, n );
+	return n;
+    }
+
+    // Parses the quanta= boot option, returning null, for the default,
+    // unless it is three positive numbers
+    private static int[] mlfqQuanta( String option ) {
+	if ( option == null )
+	    return null;
+	String[] parts = option.split( "," );
+	if ( parts.length != 3 )
+	    return null;
+	int[] quanta = new int[3];
+	for ( int i = 0; i < 3; i++ ) {
+	    quanta[i] = Integer.parseInt( parts[i].trim( ) );
+	    if ( quanta[i] <= 0 )
+		return null;
+	}
+	return quanta;
+    }
+
+    // Sleeps on the I/O queue, charging the time to the calling thread
+    private void ioWait( int condition ) {
+	TCB myTcb = scheduler.getMyTcb( );
+	if ( myTcb != null )
+	    myTcb.beginWait( System.nanoTime( ) );
+	ioWaiters.incrementAndGet( );
+	ioQueue.enqueueAndSleep( condition );
+	ioWaiters.decrementAndGet( );
+	if ( myTcb != null )
+	    myTcb.endWait( System.nanoTime( ), true );
+    }
+
+    // Registers the gauges SysLib.metrics( ) reports: threads waiting on
+    // the I/O and wait queues, each CPU's run queue and cached blocks
+    private void bootGauges( ) {
+	metrics.gauge( "ioqueue", ioWaiters::get );
+	metrics.gauge( "waitqueue", waitQueue::waiting );
+	for ( int i = 0; i < scheduler.getProcessors( ); i++ ) {
+	    final int cpu = i;
+	    metrics.gauge( "runqueue" + cpu,
+			   ( ) -> scheduler.runQueueLength( cpu ) );
+	}
+	metrics.gauge( "cache", cache::occupancy );
+    }
+
+    // Boot options are "name=value" words, given to SysLib.boot( ) or
+    // on the java command line as -Dthreados.boot="name=value ..."
+    //   dispatch=park   preempt at system calls with park/unpark
+    //                   instead of Thread.suspend/resume
+    //   threads=virtual run user programs on virtual threads (Java 21),
+    //                   which implies dispatch=park
+    //   carriers=N      carrier threads for virtual threads. These are
+    //                   the JVM's, shared by every kernel, so only the
+    //                   first kernel booted with threads=virtual sets
+    //                   how many there are
+    //   maxthreads=N    most threads the scheduler will hold
+    //   cpus=N          virtual CPUs, each with its own run queues
+    //   tickless        do not preempt a thread alone on its CPU
+    //   policy=NAME     mlfq (default), fair, lottery or edf
+    //   quanta=A,B,C    MLFQ slice of queues 0, 1 and 2 in milliseconds
+    //   boost=MS        MLFQ boost of every thread to queue 0, 0 for none
+    //   preload=A,B     load programs A and B at boot rather than on
+    //                   their first exec
+    //   conslines=N     console lines waiting to be printed before a
+    //                   writing thread is made to wait
+    //   mirror=NAME     append console output to threadOS file NAME
+    //   sample=N        time one in N of each system call for the
+    //                   metrics, 1 for all; 8 by default
+    //   trace=N         keep the last N system calls for SysLib.trace( ),
+    //                   timing them all
+    //   disk=NAME       keep the disk in host file NAME rather than in
+    //                   DISK; each kernel in the JVM needs its own
+    private static Properties bootOptions( String args[] ) {
+	Properties options = new Properties( );
+	String words = System.getProperty( "threados.boot", "" );
+	if ( args != null )
+	    for ( int i = 0; i < args.length; i++ )
+		words += " " + args[i];
+
+	StringTokenizer token = new StringTokenizer( words );
+	while ( token.hasMoreTokens( ) ) {
+	    String word = token.nextToken( );
+	    int eq = word.indexOf( '=' );
+	    if ( eq == -1 )
+		options.setProperty( word, "true" );
+	    else
+		options.setProperty( word.substring( 0, eq ),
+				     word.substring( eq + 1 ) );
+	}
+	return options;
+    }
+
+    // Holds disk image 'image' for this kernel. Returns false if another
+    // kernel already holds it
+    private static boolean claimImage( String image ) {
+	synchronized ( images ) {
+	    return images.add( new File( image ).toPath( ).toAbsolutePath( )
+			       .normalize( ).toString( ) );
+	}
+    }
+
+    // Looks up the virtual thread builder. A virtual thread that is not
+    // dispatched parks at its yield point, which unmounts it from its
+    // carrier, so carriers are only held by threads the scheduler has
+    // given the CPU. Returns false if this JVM has no virtual threads
+    private boolean bootVirtualThreads( Properties options ) {
+	String carriers = options.getProperty( "carriers" );
+	synchronized ( Kernel.class ) {
+	    if ( !carriersSet ) {
+		if ( carriers != null )
+		    System.setProperty(
+			"jdk.virtualThreadScheduler.parallelism", carriers );
+		carriersSet = true;
+	    }
+	    else if ( carriers != null )
+		System.out.println( "threadOS: carriers are set by the first " +
+				    "kernel with virtual threads, ignoring " +
+				    "carriers=" + carriers );
+	}
+	try {
+	    virtualBuilder = Thread.class.getMethod( "ofVirtual" )
+		.invoke( null );
+	    virtualUnstarted = Class.forName( "java.lang.Thread$Builder" )
+		.getMethod( "unstarted", Runnable.class );
+	    return true;
+	}
+	catch ( Exception e ) {
+	    System.out.println( "threadOS: no virtual threads in this JVM, " +
+				"using platform threads" );
+	    virtualBuilder = null;
+	    virtualUnstarted = null;
+	    return false;
+	}
+    }
+
+    // Creates the unstarted thread a user program runs on
+    private Thread newUserThread( Runnable program ) {
+	if ( virtualBuilder != null ) {
+	    try {
+		return ( Thread )virtualUnstarted.invoke( virtualBuilder,
+							  program );
+	    }
+	    catch ( IllegalAccessException e ) {
+		System.out.println( e );
+	    }
+	    catch ( InvocationTargetException e ) {
+		System.out.println( e );
+	    }
+	}
+	return new Thread( program );
+    }
+
+    // Spawning a new thread. It starts with its parent's descriptors,
+    // sharing their file table entries rather than opening them again
+    private int sysExec( TCB myTcb, String args[] ) {
+	long start = System.nanoTime( );
+	try {
+	    // instantiate the program args[0], with the rest of args[] as
+	    // its arguments; its class and constructor are looked up once
+	    Runnable thrObj = programs.instantiate( args );
+
 	    // instantiate a new thread of this object
-	    Thread t = new Thread( (Runnable)thrObj );
+	    Thread t = newUserThread( thrObj );
+
+	    // count the child's references to my open files
+	    FileTableEntry[] fds = null;
+	    if ( myTcb != null ) {
+		fds = myTcb.getFds( );
+		for ( int fd = 0; fd < fds.length; fd++ )
+		    if ( fds[fd] != null )
+			fs.dup( fds[fd] );
+	    }
 
 	    // add this thread into scheduler's circular list.
-	    TCB newTcb = scheduler.addThread( t );
+	    TCB newTcb = scheduler.addThread( t, fds );
+	    if ( newTcb == null && fds != null )
+		for ( int fd = 0; fd < fds.length; fd++ )
+		    if ( fds[fd] != null )
+			fs.close( fds[fd] );
+	    programs.spawned( args[0], System.nanoTime( ) - start );
 	    return ( newTcb != null ) ? newTcb.getTid( ) : ERROR;
 	}
 	catch ( ClassNotFoundException e ) {
@@ -0,0 +1,105 @@
+// LatencyHistogram, a record of how long something took, e.g. each run of
+// a program under the shell's bench command, from which percentiles can
+// be read. Values are counted in buckets rather than kept: each power of
+// two range is split into 16 buckets, so recording is one array
+// increment whatever the count, the histogram stays under 8 KB, and a
+// percentile is off by at most 1/32 of its value
+public class LatencyHistogram
+{
+	private final static int SUB_BITS = 4;
+	private final static int SUB = 1 << SUB_BITS;
+	final static int BUCKETS = ( 64 - SUB_BITS + 1 ) * SUB;
+
+	private final long[ ] buckets = new long[ BUCKETS ];
+	private long count = 0;
+	private long sum = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+
+	// Counts one value, e.g. a latency in nanoseconds. Negative values
+	// count as 0
+	public void record( long value )
+	{
+		if( value < 0 )
+			value = 0;
+		this.buckets[ bucket( value ) ]++;
+		this.count++;
+		this.sum += value;
+		this.min = Math.min( this.min, value );
+		this.max = Math.max( this.max, value );
+	}
+
+	public long count( )
+	{
+		return this.count;
+	}
+
+	public long min( )
+	{
+		return ( this.count == 0 ? 0 : this.min );
+	}
+
+	public long max( )
+	{
+		return this.max;
+	}
+
+	public long mean( )
+	{
+		return ( this.count == 0 ? 0 : this.sum / this.count );
+	}
+
+	// The value 'p' percent of the recorded values are at or below,
+	// e.g. percentile( 99 ), or 0 if nothing was recorded
+	public long percentile( double p )
+	{
+		if( this.count == 0 )
+			return 0;
+
+		long rank = ( long )Math.ceil( this.count * p / 100.0 );
+		rank = Math.max( 1, Math.min( rank, this.count ) );
+		long seen = 0;
+		for( int i = 0; i < this.buckets.length; i++ )
+		{
+			seen += this.buckets[ i ];
+			if( seen >= rank )
+				return Math.max( this.min, Math.min( this.max, middle( i ) ) );
+		}
+		return this.max;
+	}
+
+	// Counts 'n' values from bucket 'i' as if they were its middle
+	// value, for Metrics, which keeps its buckets itself
+	void add( int i, long n )
+	{
+		if( n <= 0 )
+			return;
+		long value = middle( i );
+		this.buckets[ i ] += n;
+		this.count += n;
+		this.sum += value * n;
+		this.min = Math.min( this.min, value );
+		this.max = Math.max( this.max, value );
+	}
+
+	// Values below SUB have a bucket each; after that a value's bucket
+	// is its highest bit's position and the SUB_BITS bits below it
+	static int bucket( long value )
+	{
+		if( value < SUB )
+			return ( int )value;
+		int top = 63 - Long.numberOfLeadingZeros( value );
+		int sub = ( int )( value >>> ( top - SUB_BITS ) ) & ( SUB - 1 );
+		return ( top - SUB_BITS + 1 ) * SUB + sub;
+	}
+
+	// The value in the middle of bucket 'i'
+	private static long middle( int i )
+	{
+		if( i < SUB )
+			return i;
+		int top = i / SUB + SUB_BITS - 1;
+		long low = ( long )( SUB + i % SUB ) << ( top - SUB_BITS );
+		return low + ( 1L << ( top - SUB_BITS ) ) / 2;
+	}
+}
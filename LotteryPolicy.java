@@ -0,0 +1,98 @@
+//------------------------------------------------------------------
+// class LotteryPolicy, lottery scheduling. Every thread holds tickets,
+// SysLib.tickets( ) sets how many, and each slice goes to the holder
+// of a ticket drawn at random, so over time a thread gets a share of
+// the CPU in proportion to its tickets
+//------------------------------------------------------------------
+import java.util.*;
+public class LotteryPolicy implements SchedulingPolicy
+{
+  private Vector<TCB> threads;
+  private Vector<Integer> held;  // each thread's tickets when added
+  private long totalTickets;
+  private TCB winner;           // holds the CPU until its slice ends
+  private Random random;
+  private int timeSlice;
+
+  public LotteryPolicy( int quantum )
+  {
+    this.threads = new Vector<TCB>( );
+    this.held = new Vector<Integer>( );
+    this.totalTickets = 0;
+    this.winner = null;
+    this.random = new Random( );
+    this.timeSlice = quantum;
+  }
+
+  //----------------------------------------------------------------
+  // A thread's tickets are counted as they were when it was added, so
+  // SysLib.tickets( ) changing them takes effect when it is requeued
+  // and the total always matches the tickets being drawn from
+  public void add( TCB thread )
+  {
+    int tickets = thread.getTickets( );
+    threads.add( thread );
+    held.add( tickets );
+    totalTickets += tickets;
+  }
+
+  public void remove( TCB thread )
+  {
+    int i = threads.indexOf( thread );
+    if( i != -1 )
+    {
+      threads.remove( i );
+      totalTickets -= held.remove( i );
+    }
+    if( winner == thread )
+      winner = null;
+  }
+
+  //----------------------------------------------------------------
+  // Holds a draw when the last winner's slice is over
+  public TCB next( )
+  {
+    if( winner == null && !threads.isEmpty( ) )
+    {
+      long ticket = ( long )( random.nextDouble( ) * totalTickets );
+      for( int i = 0; i < threads.size( ) && winner == null; i++ )
+      {
+        ticket -= held.elementAt( i );
+        if( ticket < 0 )
+          winner = threads.elementAt( i );
+      }
+      if( winner == null )
+        winner = threads.lastElement( );
+    }
+    return winner;
+  }
+
+  public int quantum( TCB thread )
+  {
+    return timeSlice / 2;
+  }
+
+  public void expired( TCB thread, long ran )
+  {
+    winner = null;
+  }
+
+  public TCB takeWaiting( TCB running )
+  {
+    for( int i = threads.size( ) - 1; i >= 0; i-- )
+    {
+      TCB t = threads.elementAt( i );
+      if( t != running && t != winner )
+      {
+        remove( t );
+        return t;
+      }
+    }
+    return null;
+  }
+
+  public int size( )
+  {
+    return threads.size( );
+  }
+}
@@ -0,0 +1,335 @@
+// A mapped view of an open ThreadOS file. Each block sized page of the file
+// is faulted in from the block cache the first time it is touched, after
+// which gets and puts are plain array accesses with no system call. Pages
+// that have been written are tracked as dirty and written back through the
+// cache on sync or unmap. Every view of a file shares one set of pages, so
+// a put through one view is seen by a get through any other
+public class MappedFile
+{
+	// The pages of one mapped file, shared by its views, which lock it
+	// to get at them. Kept by the file system until the last view of
+	// the file is unmapped
+	static class Pages
+	{
+		private final byte[ ][ ] page;      // faulted pages, null until touched
+		private final boolean[ ] dirty;     // pages written since the last sync
+		private int length;                 // mapped file size in bytes
+		private int views;                  // views not yet unmapped
+
+		Pages( int length )
+		{
+			this.page = new byte[ Inode.maxBlocks( ) ][ ];
+			this.dirty = new boolean[ this.page.length ];
+			this.length = length;
+		}
+
+		// Counts a new view of the file
+		void map( )
+		{
+			this.views++;
+		}
+
+		// Counts a view unmapped. Returns true if it was the last one
+		boolean unmap( )
+		{
+			return --this.views == 0;
+		}
+	}
+
+	private final FileSystem fs;
+	private final FileTableEntry fEnt;
+	private final boolean writable;
+	private final Pages pages;
+	private boolean mapped;
+
+	// Maps the file behind 'fEnt' onto 'pages', those of its other views
+	// if it has any. The view covers every block the inode can address,
+	// so writes may grow the file up to capacity( )
+	MappedFile( FileSystem fs, FileTableEntry fEnt, Pages pages )
+	{
+		this.fs = fs;
+		this.fEnt = fEnt;
+		this.writable = !fEnt.mode.equals( "r" );
+		this.pages = pages;
+		this.mapped = true;
+	}
+
+	// Returns the byte at 'pos' as an unsigned value, or -1 if 'pos'
+	// is past the end of the file or the view has been unmapped
+	public int get( int pos )
+	{
+		fault( pos, 1 );
+		synchronized( this.pages )
+		{
+			if( !this.mapped || pos < 0 || pos >= this.pages.length )
+				return -1;
+
+			return page( pos / Disk.blockSize )[ pos % Disk.blockSize ] & 0xff;
+		}
+	}
+
+	// Stores 'b' at 'pos', growing the file if 'pos' is past its end.
+	// Returns false if the view is read only, unmapped, or 'pos' is
+	// outside the addressable range of the inode
+	public boolean put( int pos, byte b )
+	{
+		fault( pos, 1 );
+		synchronized( this.pages )
+		{
+			if( !this.writable || !this.mapped || pos < 0 || pos >= capacity( ) )
+				return false;
+
+			page( pos / Disk.blockSize )[ pos % Disk.blockSize ] = b;
+			this.pages.dirty[ pos / Disk.blockSize ] = true;
+			if( pos >= this.pages.length )
+				this.pages.length = pos + 1;
+
+			return true;
+		}
+	}
+
+	// Copies up to 'len' bytes starting at 'pos' into 'dst'. Returns the
+	// number of bytes copied, or -1 if the view has been unmapped
+	public int get( int pos, byte[ ] dst, int off, int len )
+	{
+		fault( pos, len );
+		synchronized( this.pages )
+		{
+			if( !this.mapped || pos < 0 )
+				return -1;
+
+			len = Math.min( len, this.pages.length - pos );
+			int copied = 0;
+			while( copied < len )
+			{
+				int inpage = ( pos + copied ) % Disk.blockSize;
+				int chunk = Math.min( Disk.blockSize - inpage, len - copied );
+				System.arraycopy( page( ( pos + copied ) / Disk.blockSize ),
+						  inpage, dst, off + copied, chunk );
+				copied += chunk;
+			}
+
+			return copied;
+		}
+	}
+
+	// Copies 'len' bytes from 'src' into the view starting at 'pos'.
+	// Returns the number of bytes copied, or -1 on error
+	public int put( int pos, byte[ ] src, int off, int len )
+	{
+		fault( pos, len );
+		synchronized( this.pages )
+		{
+			if( !this.writable || !this.mapped || pos < 0 )
+				return -1;
+
+			len = Math.min( len, capacity( ) - pos );
+			int copied = 0;
+			while( copied < len )
+			{
+				int blk = ( pos + copied ) / Disk.blockSize;
+				int inpage = ( pos + copied ) % Disk.blockSize;
+				int chunk = Math.min( Disk.blockSize - inpage, len - copied );
+				System.arraycopy( src, off + copied, page( blk ), inpage, chunk );
+				this.pages.dirty[ blk ] = true;
+				copied += chunk;
+			}
+
+			if( pos + copied > this.pages.length )
+				this.pages.length = pos + copied;
+
+			return copied;
+		}
+	}
+
+	// Returns the int at 'pos', reading bytes past the end of the file
+	// or of an unmapped view as 0
+	public int getInt( int pos )
+	{
+		fault( pos, 4 );
+		synchronized( this.pages )
+		{
+			if( this.mapped && pos >= 0 && pos + 4 <= this.pages.length
+			    && pos % Disk.blockSize <= Disk.blockSize - 4 )
+				return SysLib.bytes2int( page( pos / Disk.blockSize ),
+							 pos % Disk.blockSize );
+
+			int n = 0;
+			for( int i = 0; i < 4; i++ )
+			{
+				int at = pos + i;
+				n <<= 8;
+				if( this.mapped && at >= 0 && at < this.pages.length )
+					n |= page( at / Disk.blockSize )[ at % Disk.blockSize ] & 0xff;
+			}
+			return n;
+		}
+	}
+
+	// Stores 'value' at 'pos' as put( ) would its four bytes. Returns
+	// false, having stored none of them, if any could not be
+	public boolean putInt( int pos, int value )
+	{
+		fault( pos, 4 );
+		synchronized( this.pages )
+		{
+			if( !this.writable || !this.mapped || pos < 0
+			    || pos > capacity( ) - 4 )
+				return false;
+
+			if( pos % Disk.blockSize <= Disk.blockSize - 4 )
+			{
+				SysLib.int2bytes( value, page( pos / Disk.blockSize ),
+						  pos % Disk.blockSize );
+				this.pages.dirty[ pos / Disk.blockSize ] = true;
+			}
+			else
+				for( int i = 0; i < 4; i++ )
+				{
+					int at = pos + i;
+					page( at / Disk.blockSize )[ at % Disk.blockSize ]
+						= ( byte )( value >> ( 24 - 8 * i ) );
+					this.pages.dirty[ at / Disk.blockSize ] = true;
+				}
+
+			if( pos + 4 > this.pages.length )
+				this.pages.length = pos + 4;
+
+			return true;
+		}
+	}
+
+	public int length( )
+	{
+		synchronized( this.pages )
+		{
+			return this.pages.length;
+		}
+	}
+
+	// The largest file size this view can grow to
+	public int capacity( )
+	{
+		return this.pages.page.length * Disk.blockSize;
+	}
+
+	// Writes every dirty page of the file back through the block cache,
+	// allocating blocks for pages past the old end of file, and then
+	// updates the inode. Only a writable view, whose entry is the one
+	// the file is being written through, can have dirtied them, so a
+	// read only view has nothing to write. Called from the kernel on
+	// MSYNC and MUNMAP, inside whose system call the cache calls made
+	// here nest, so a preempted thread is not stopped at them while it
+	// holds the pages
+	int sync( )
+	{
+		synchronized( this.pages )
+		{
+			if( !this.mapped )
+				return -1;
+			if( !this.writable )
+				return 0;
+
+			boolean wrote = false;
+			for( int i = 0; i < this.pages.page.length; i++ )
+			{
+				if( !this.pages.dirty[ i ] )
+					continue;
+
+				short blk = this.fs.mapBlock( this.fEnt, i );
+				if( blk == -1 )
+					return -1;
+
+				SysLib.cwrite( blk, this.pages.page[ i ] );
+				this.pages.dirty[ i ] = false;
+				wrote = true;
+			}
+
+			if( wrote )
+			{
+				SysLib.csync( );
+				if( this.pages.length > this.fEnt.inode.length )
+					this.fEnt.inode.length = this.pages.length;
+				this.fEnt.inode.toDisk( this.fEnt.iNumber );
+			}
+
+			return 0;
+		}
+	}
+
+	// Writes back the view and invalidates it. Later accesses fail. The
+	// pages are dropped along with the last view of the file
+	int unmap( )
+	{
+		synchronized( this.pages )
+		{
+			int synced = sync( );
+			if( !this.mapped )
+				return synced;
+
+			this.mapped = false;
+			if( this.fs.unmapped( this.fEnt, this.pages ) )
+				for( int i = 0; i < this.pages.page.length; i++ )
+					this.pages.page[ i ] = null;
+
+			return synced;
+		}
+	}
+
+	// Returns the page holding file block 'blk', which fault( ) has
+	// brought in. The caller holds the pages
+	private byte[ ] page( int blk )
+	{
+		return this.pages.page[ blk ];
+	}
+
+	// Faults in the pages holding the 'len' bytes at 'pos' that are not
+	// in yet, as far as the view reaches. The cache is read without
+	// holding the pages: a thread that has been preempted stops on its
+	// way into the read, and must not keep the other views of the file
+	// waiting meanwhile. A page another view faults in first is kept
+	private void fault( int pos, int len )
+	{
+		long end = Math.min( ( long )pos + len, capacity( ) );
+		for( long at = Math.max( pos, 0 ); at < end;
+		     at = ( at / Disk.blockSize + 1 ) * Disk.blockSize )
+		{
+			int blk = ( int )( at / Disk.blockSize );
+			synchronized( this.pages )
+			{
+				if( !this.mapped )
+					return;
+				if( this.pages.page[ blk ] != null )
+					continue;
+			}
+
+			byte[ ] data = load( blk );
+			synchronized( this.pages )
+			{
+				if( this.mapped && this.pages.page[ blk ] == null )
+					this.pages.page[ blk ] = data;
+			}
+		}
+	}
+
+	// Reads file block 'blk' from the cache. Blocks the file does not
+	// have yet start out zeroed
+	private byte[ ] load( int blk )
+	{
+		byte[ ] data = new byte[ Disk.blockSize ];
+		short diskblk = this.fEnt.inode.findTargetBlock( blk * Disk.blockSize );
+		if( this.fEnt.inode.inline == 1 )
+		{
+			if( blk == 0 )
+				System.arraycopy( this.fEnt.inode.data, 0, data, 0,
+						  Inode.inlineSize );
+		}
+		else if( this.fEnt.inode.delayed[ blk ] != null )
+			System.arraycopy( this.fEnt.inode.delayed[ blk ], 0, data, 0,
+					  Disk.blockSize );
+		else if( diskblk != -1 )
+			SysLib.cread( diskblk, data );
+
+		return data;
+	}
+}
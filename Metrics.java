@@ -0,0 +1,205 @@
+// Metrics, what the kernel keeps about itself while it runs: for every
+// system call a count and a latency histogram, recorded by the kernel
+// on its dispatch path, and gauges, named values such as queue depths
+// that are read when asked for. See SysLib.metrics( ) and Top -m.
+//
+// Every call is counted, but by default only one in SAMPLE of each
+// system call is timed, as reading the clock twice costs more than
+// many calls do; see the sample= boot option. Recording takes no lock
+// and allocates nothing: a count is an atomic increment, and so is a
+// timed call, in a histogram bucket laid out as LatencyHistogram's.
+//
+// There is also an optional trace, a ring of the last system calls made,
+// with who made them, when and what came of it; see the trace= boot
+// option and SysLib.trace( ). Once the ring is full each call overwrites
+// the oldest, so calls made while it is being dumped may show up torn
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.LongSupplier;
+public class Metrics
+{
+	public final static int SAMPLE = 8;
+
+	private final String[ ] names;       // of the system calls
+	private final AtomicLongArray counts;
+	private final AtomicLongArray[ ] latency;
+	private final AtomicLongArray worst;
+	private final LinkedHashMap<String, LongSupplier> gauges
+		= new LinkedHashMap<String, LongSupplier>( );
+
+	private int sampleMask = SAMPLE - 1;
+
+	// the trace, or null for none
+	private int traceMask;
+	private AtomicLong traceNext;
+	private long[ ] traceStart;
+	private long[ ] traceNanos;
+	private int[ ] traceTid;
+	private int[ ] traceCmd;
+	private int[ ] traceParam;
+	private int[ ] traceResult;
+
+	// Keeps metrics for the system calls named in 'names', indexed by
+	// system call number
+	public Metrics( String[ ] names )
+	{
+		int n = names.length;
+		this.names = names;
+		this.counts = new AtomicLongArray( n );
+		this.latency = new AtomicLongArray[ n ];
+		this.worst = new AtomicLongArray( n );
+		for( int i = 0; i < n; i++ )
+			this.latency[ i ] = new AtomicLongArray( LatencyHistogram.BUCKETS );
+	}
+
+	// Times one in 'every' calls of each system call, rounded up to a
+	// power of two; 1 times them all
+	public void sample( int every )
+	{
+		int size = 1;
+		while( size < every )
+			size <<= 1;
+		this.sampleMask = size - 1;
+	}
+
+	// Starts tracing the last 'events' system calls, rounded up to a
+	// power of two
+	public void trace( int events )
+	{
+		int size = 1;
+		while( size < events )
+			size <<= 1;
+
+		this.traceStart = new long[ size ];
+		this.traceNanos = new long[ size ];
+		this.traceTid = new int[ size ];
+		this.traceCmd = new int[ size ];
+		this.traceParam = new int[ size ];
+		this.traceResult = new int[ size ];
+		this.traceMask = size - 1;
+		this.traceNext = new AtomicLong( );
+	}
+
+	// Adds gauge 'name', whose value 'value' reads
+	public synchronized void gauge( String name, LongSupplier value )
+	{
+		gauges.put( name, value );
+	}
+
+	// Counts a call of system call 'cmd'. Returns true if it is to be
+	// timed and passed to syscall( ): the first of each SAMPLE calls,
+	// or every call while there is a trace
+	public boolean count( int cmd )
+	{
+		long n = this.counts.incrementAndGet( cmd );
+		return ( ( n - 1 ) & this.sampleMask ) == 0 || this.traceNext != null;
+	}
+
+	// Records timed system call 'cmd', made by 'tcb', null if not a user
+	// thread, with 'param', which started at System.nanoTime( ) 'start',
+	// took 'took' nanoseconds and returned 'result'
+	public void syscall( int cmd, TCB tcb, int param, int result,
+			     long start, long took )
+	{
+		this.latency[ cmd ].incrementAndGet( LatencyHistogram.bucket( took ) );
+		if( took > this.worst.get( cmd ) )
+			this.worst.accumulateAndGet( cmd, took, Math::max );
+
+		AtomicLong next = this.traceNext;
+		if( next == null )
+			return;
+		int slot = ( int )( next.getAndIncrement( ) & this.traceMask );
+		this.traceStart[ slot ] = start;
+		this.traceNanos[ slot ] = took;
+		this.traceTid[ slot ] = ( tcb != null ? tcb.getTid( ) : -1 );
+		this.traceCmd[ slot ] = cmd;
+		this.traceParam[ slot ] = param;
+		this.traceResult[ slot ] = result;
+	}
+
+	// The number of system calls made since boot
+	public long total( )
+	{
+		long sum = 0;
+		for( int i = 0; i < this.counts.length( ); i++ )
+			sum += this.counts.get( i );
+		return sum;
+	}
+
+	// Appends a line per system call made so far to 'rows':
+	// "syscall name count mean-us p50-us p99-us max-us", the latencies
+	// those of the calls timed, then a line per gauge: "gauge name
+	// value". Returns the number of lines
+	public int report( Vector rows )
+	{
+		int count = 0;
+		for( int i = 0; i < this.names.length; i++ )
+		{
+			long n = this.counts.get( i );
+			if( n == 0 )
+				continue;
+
+			LatencyHistogram h = new LatencyHistogram( );
+			for( int b = 0; b < LatencyHistogram.BUCKETS; b++ )
+				h.add( b, this.latency[ i ].get( b ) );
+			// bucket values are estimates, so keep them within the worst
+			long worst = this.worst.get( i );
+			rows.add( "syscall " + this.names[ i ] + " " + n + " "
+				  + Math.min( h.mean( ), worst ) / 1000 + " "
+				  + Math.min( h.percentile( 50 ), worst ) / 1000 + " "
+				  + Math.min( h.percentile( 99 ), worst ) / 1000 + " "
+				  + worst / 1000 );
+			count++;
+		}
+
+		synchronized( this )
+		{
+			for( Map.Entry<String, LongSupplier> g : gauges.entrySet( ) )
+			{
+				rows.add( "gauge " + g.getKey( ) + " "
+					  + g.getValue( ).getAsLong( ) );
+				count++;
+			}
+		}
+		return count;
+	}
+
+	// Writes the trace, oldest call first, to file 'path' of the host,
+	// one call a line: "start-us tid syscall param result took-us", the
+	// start relative to the first call in the file. Returns the number
+	// of calls written, or -1 if there is no trace or no such file
+	public int dump( String path )
+	{
+		AtomicLong next = this.traceNext;
+		if( next == null )
+			return -1;
+
+		long end = next.get( );
+		long from = Math.max( 0, end - ( this.traceMask + 1 ) );
+		try
+		{
+			PrintWriter out = new PrintWriter( new BufferedWriter(
+				new FileWriter( path ) ) );
+			long base = this.traceStart[ ( int )( from & this.traceMask ) ];
+			for( long e = from; e < end; e++ )
+			{
+				int slot = ( int )( e & this.traceMask );
+				int cmd = this.traceCmd[ slot ];
+				out.println( ( this.traceStart[ slot ] - base ) / 1000 + " "
+					     + this.traceTid[ slot ] + " "
+					     + ( cmd < this.names.length ?
+						 this.names[ cmd ] : "" + cmd ) + " "
+					     + this.traceParam[ slot ] + " "
+					     + this.traceResult[ slot ] + " "
+					     + this.traceNanos[ slot ] / 1000 );
+			}
+			out.close( );
+			return ( int )( end - from );
+		}
+		catch( IOException e )
+		{
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+//------------------------------------------------------------------
+// class MlfqPolicy, the threadOS multi-level feedback queue. Three
+// queues are served in priority order, each with its own slice
+// length, by default half a quantum. A thread in queue 0 is moved
+// down after one slice, a thread in queue 1 after two; queue 2 is
+// round robin, its head going to the back after four slices
+//
+// So that a thread's priority follows what it does now rather than
+// what it once did:
+//  - a thread that blocked on the disk, a join, a sleep or console
+//    input during its slice is not moved down but up a queue
+//  - every boost interval all threads go back to queue 0, so a
+//    stream of new threads cannot starve the lower queues
+//------------------------------------------------------------------
+import java.util.*;
+public class MlfqPolicy implements SchedulingPolicy
+{
+  private Vector[ ] queues;
+  private int phase[ ];
+  private int quanta[ ];         // slice length of each queue
+  private int boostInterval;     // ms between boosts, 0 for none
+  private long lastBoost;
+
+  public MlfqPolicy( int quantum )
+  {
+    this( new int[ ] { quantum / 2, quantum / 2, quantum / 2 },
+          quantum * 5 );
+  }
+
+  //----------------------------------------------------------------
+  // Sets the slice length of each queue and the time between boosts
+  // pre : 'quanta' has 3 elements, all > 0
+  public MlfqPolicy( int[ ] quanta, int boostInterval )
+  {
+    this.queues = new Vector[ 3 ];
+    this.queues[ 0 ] = new Vector( );
+    this.queues[ 1 ] = new Vector( );
+    this.queues[ 2 ] = new Vector( ); 
+    this.phase = new int[ 3 ];
+    this.quanta = quanta;
+    this.boostInterval = boostInterval;
+    this.lastBoost = System.currentTimeMillis( );
+  }
+
+  //----------------------------------------------------------------
+  // New threads go to the back of queue 0, migrated ones to the
+  // queue they were in. A thread coming back from a sleep moves up
+  public void add( TCB thread )
+  {
+    if( thread.wasBlocked( ) )
+    {
+      if( thread.getLevel( ) > 0 )
+        thread.setLevel( thread.getLevel( ) - 1 );
+      thread.clearBlocked( );
+    }
+    queues[ thread.getLevel( ) ].add( thread );
+  }
+
+  public void remove( TCB thread )
+  {
+    int q_index = thread.getLevel( );
+    if( !queues[ q_index ].isEmpty( )
+        && queues[ q_index ].firstElement( ) == thread )
+      phase[ q_index ] = 0;
+    queues[ q_index ].remove( thread );
+  }
+
+  //---------------------------------------------------------------
+  // Returns the thread that should run. Current thread is defined by
+  // the MLFQ algorithm to be the next thread in the zero queue, 
+  // and the next thread in the one queue of the zero queue is
+  // empty, and so on for the two queue 
+  public TCB next( )
+  {
+    if( boostInterval > 0
+        && System.currentTimeMillis( ) - lastBoost >= boostInterval )
+      boost( );
+
+    for( int i = 0; i < 3; i++ )
+      if( !this.queues[ i ].isEmpty( ) )
+        return ( TCB )this.queues[ i ].firstElement( );
+    return null;
+  }
+
+  public int quantum( TCB thread )
+  {
+    return quanta[ thread.getLevel( ) ];
+  }
+
+  public void expired( TCB thread, long ran )
+  {
+    int q_index = thread.getLevel( );
+    if( thread.wasBlocked( ) )
+    {
+      // it gave up the CPU during the slice, so it is interactive or
+      // I/O bound: move it to the back of the next queue up
+      phase[ q_index ] = 0;
+      queues[ q_index ].remove( thread );
+      if( q_index > 0 )
+        q_index--;
+      queues[ q_index ].add( thread );
+      thread.setLevel( q_index );
+      thread.clearBlocked( );
+      return;
+    }
+
+    phase[ q_index ]++;
+    if( q_index == 0 || phase[ q_index ] == ( 2 * q_index ) )
+    {
+      phase[ q_index ] = 0;
+      reprioritizeThread( thread, q_index );
+    }
+  }
+
+  //----------------------------------------------------------------
+  // Prefers the lowest priority queue, since those threads have the
+  // least cache left to lose
+  public TCB takeWaiting( TCB running )
+  {
+    for( int q = 2; q >= 0; q-- )
+      for( int i = queues[ q ].size( ) - 1; i >= 0; i-- )
+        if( queues[ q ].elementAt( i ) != running )
+          return ( TCB )queues[ q ].remove( i );
+    return null;
+  }
+
+  public int size( )
+  {
+    return queues[ 0 ].size( ) + queues[ 1 ].size( ) + queues[ 2 ].size( );
+  }
+
+  //----------------------------------------------------------------
+  // Resets the thread's priority by moving it to the back of the
+  // next queue up. If the current queue is 2 however the thread is
+  // moved to the back of the queue
+  // pre : Parameter 'q_index' is between 0 and 2, 'thread' != null 
+  private void reprioritizeThread( TCB thread, int q_index )
+  {
+      if( q_index == 2 )
+      {
+        queues[ 2 ].remove( thread );
+        queues[ 2 ].add( thread );
+      }
+      else
+      {
+        queues[ q_index ].remove( thread );
+        queues[ q_index + 1 ].add( thread );
+        thread.setLevel( q_index + 1 );
+        thread.countDemotion( );
+      }
+  }
+
+  //----------------------------------------------------------------
+  // Moves every thread in queues 1 and 2 to the back of queue 0, in
+  // the order they were queued
+  private void boost( )
+  {
+    for( int q = 1; q < 3; q++ )
+    {
+      for( int i = 0; i < queues[ q ].size( ); i++ )
+      {
+        TCB thread = ( TCB )queues[ q ].elementAt( i );
+        thread.setLevel( 0 );
+        queues[ 0 ].add( thread );
+      }
+      queues[ q ].clear( );
+      phase[ q ] = 0;
+    }
+    lastBoost = System.currentTimeMillis( );
+  }
+}
@@ -0,0 +1,181 @@
+// Pipe, a one-way byte stream between threads, made by SysLib.pipe( ).
+// Bytes go through a ring buffer in memory: the writing end fills it,
+// the reading end empties it, and neither goes near the disk or takes a
+// lock the other side needs. Each side moves only its own index, so the
+// ring is a single producer, single consumer queue; threads sharing an
+// end, through dup( ) or exec( ), take turns on it.
+//
+// A reader finding the pipe empty, or a writer finding it full, is taken
+// off its CPU with Scheduler.blockThread( ) until the other side makes
+// progress or closes its end, so a blocked thread costs no CPU time. A
+// read returns what is there, at least a byte, or 0 once the pipe is
+// empty and every writing descriptor is closed. A write returns once all
+// of it is in the pipe, or -1 if every reading descriptor is closed.
+// The locks taking turns are ReentrantLocks, so a virtual thread blocked
+// while holding one does not pin its carrier
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+public class Pipe
+{
+	public final static int DEFAULT_SIZE = 65536;
+
+	private final Scheduler scheduler;
+	private final byte[ ] ring;
+	private final int mask;
+	private volatile long head = 0;    // bytes read so far, moved by reads
+	private volatile long tail = 0;    // bytes written, moved by writes
+	private volatile boolean readClosed = false;
+	private volatile boolean writeClosed = false;
+
+	// the thread blocked on each side, if any
+	private final AtomicReference<TCB> blockedReader
+		= new AtomicReference<TCB>( );
+	private final AtomicReference<TCB> blockedWriter
+		= new AtomicReference<TCB>( );
+
+	public final PipeEnd readEnd;
+	public final PipeEnd writeEnd;
+	private final ReentrantLock readLock = new ReentrantLock( );
+	private final ReentrantLock writeLock = new ReentrantLock( );
+
+	// Makes a pipe holding at least 'size' bytes, rounded up to a power
+	// of two, whose threads block through 'scheduler'
+	public Pipe( Scheduler scheduler, int size )
+	{
+		int capacity = 1;
+		while( capacity < size )
+			capacity <<= 1;
+
+		this.scheduler = scheduler;
+		this.ring = new byte[ capacity ];
+		this.mask = capacity - 1;
+		this.readEnd = new PipeEnd( this, "r" );
+		this.writeEnd = new PipeEnd( this, "w" );
+	}
+
+	// Reads up to 'buffer.length' bytes, blocking until there is at
+	// least one. Returns the number read, 0 at end of stream
+	int read( byte[ ] buffer )
+	{
+		if( buffer.length == 0 )
+			return 0;
+
+		readLock.lock( );
+		try
+		{
+			long h = this.head;
+			long t;
+			while( ( t = this.tail ) == h )
+			{
+				if( this.writeClosed )
+				{
+					// anything written before the close is read first
+					if( this.tail == h )
+						return 0;
+					continue;
+				}
+				await( blockedReader, true );
+			}
+
+			int n = ( int )Math.min( t - h, buffer.length );
+			int from = ( int )( h & this.mask );
+			int first = Math.min( n, this.ring.length - from );
+			System.arraycopy( this.ring, from, buffer, 0, first );
+			System.arraycopy( this.ring, 0, buffer, first, n - first );
+			this.head = h + n;
+			wake( blockedWriter );
+			return n;
+		}
+		finally
+		{
+			readLock.unlock( );
+		}
+	}
+
+	// Writes all of 'buffer', blocking while the pipe is full. Returns
+	// the number of bytes written, or -1 if nothing could be because
+	// no one is left to read them
+	int write( byte[ ] buffer )
+	{
+		writeLock.lock( );
+		try
+		{
+			int done = 0;
+			long t = this.tail;
+			while( done < buffer.length )
+			{
+				if( this.readClosed )
+					return ( done == 0 ? -1 : done );
+
+				int room = this.ring.length - ( int )( t - this.head );
+				if( room == 0 )
+				{
+					await( blockedWriter, false );
+					continue;
+				}
+
+				int n = Math.min( room, buffer.length - done );
+				int to = ( int )( t & this.mask );
+				int first = Math.min( n, this.ring.length - to );
+				System.arraycopy( buffer, done, this.ring, to, first );
+				System.arraycopy( buffer, done + first, this.ring, 0,
+						  n - first );
+				t += n;
+				done += n;
+				this.tail = t;
+				wake( blockedReader );
+			}
+			return done;
+		}
+		finally
+		{
+			writeLock.unlock( );
+		}
+	}
+
+	// Bytes waiting to be read
+	int available( )
+	{
+		return ( int )( this.tail - this.head );
+	}
+
+	// Called when the last descriptor of an end is closed
+	void closeEnd( PipeEnd end )
+	{
+		if( end == readEnd )
+		{
+			this.readClosed = true;
+			wake( blockedWriter );
+		}
+		else
+		{
+			this.writeClosed = true;
+			wake( blockedReader );
+		}
+	}
+
+	// Blocks the calling thread until the other side wakes it. It says
+	// it is about to block before looking at the ring one last time, so
+	// a wakeup sent in between is not lost; the caller looks again
+	// either way
+	private void await( AtomicReference<TCB> blocked, boolean reader )
+	{
+		TCB myTcb = scheduler.getMyTcb( );
+		blocked.set( myTcb );
+		boolean ready = ( reader ? this.tail != this.head || this.writeClosed
+				  : this.tail - this.head < this.ring.length
+				    || this.readClosed );
+		if( !ready )
+			scheduler.blockThread( myTcb );
+		blocked.compareAndSet( myTcb, null );
+	}
+
+	private void wake( AtomicReference<TCB> blocked )
+	{
+		if( blocked.get( ) == null )
+			return;
+		TCB tcb = blocked.getAndSet( null );
+		if( tcb != null )
+			scheduler.unblockThread( tcb );
+	}
+}
@@ -0,0 +1,46 @@
+// The read or write end of a Pipe, as it sits in a thread's descriptor
+// table. It has no inode: FileSystem hands reads, writes, dups and
+// closes of a PipeEnd to its pipe, and refuses the rest
+public class PipeEnd extends FileTableEntry {
+    private final Pipe pipe;
+
+    PipeEnd( Pipe p, String m ) {
+	super( null, ( short )-1, m );
+	pipe = p;
+    }
+
+    public int read( byte[] buffer ) {
+	if ( !mode.equals( "r" ) )
+	    return -1;
+	return pipe.read( buffer );
+    }
+
+    public int write( byte[] buffer ) {
+	if ( !mode.equals( "w" ) )
+	    return -1;
+	return pipe.write( buffer );
+    }
+
+    // bytes waiting in the pipe
+    public int available( ) {
+	return pipe.available( );
+    }
+
+    // another descriptor for this end
+    public synchronized PipeEnd dup( ) {
+	count++;
+	return this;
+    }
+
+    // closes one descriptor; the end closes with the last of them
+    public int close( ) {
+	synchronized ( this ) {
+	    if ( count == 0 )
+		return -1;
+	    if ( --count > 0 )
+		return 0;
+	}
+	pipe.closeEnd( this );
+	return 0;
+    }
+}
@@ -0,0 +1,122 @@
+// ProgramRegistry, the user programs SysLib.exec( ) has loaded. The
+// first exec of a program resolves its class and constructors by
+// reflection; later ones reuse them, so a program spawned over and over
+// costs one constructor call. Programs can also be loaded ahead of time,
+// see the preload= boot option.
+//
+// The registry also keeps each program's spawn latency: the time from
+// the EXEC system call to the new thread being queued
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+public class ProgramRegistry
+{
+	private final ConcurrentHashMap<String, Program> programs
+		= new ConcurrentHashMap<String, Program>( );
+
+	// a loaded program and its spawn statistics
+	private static class Program
+	{
+		final String name;
+		final Constructor noArgs;     // null if it has none
+		final Constructor withArgs;   // ( String[ ] ), null if none
+		long spawns = 0;
+		long totalNanos = 0;
+		long maxNanos = 0;
+
+		Program( String name, Class c )
+		{
+			this.name = name;
+			this.noArgs = constructor( c );
+			this.withArgs = constructor( c, String[ ].class );
+		}
+
+		private static Constructor constructor( Class c, Class... params )
+		{
+			try
+			{
+				return c.getConstructor( params );
+			}
+			catch( NoSuchMethodException e )
+			{
+				return null;
+			}
+		}
+	}
+
+	// Loads 'name' if it has not been loaded yet
+	public void preload( String name ) throws ClassNotFoundException
+	{
+		program( name );
+	}
+
+	// Instantiates program 'args[ 0 ]', passing it the rest of 'args'
+	// if there are any, as sysExec( ) always has
+	public Runnable instantiate( String[ ] args )
+		throws ClassNotFoundException, NoSuchMethodException,
+		       InstantiationException, IllegalAccessException,
+		       InvocationTargetException
+	{
+		Program p = program( args[ 0 ] );
+		if( args.length == 1 )
+		{
+			if( p.noArgs == null )
+				throw new NoSuchMethodException( args[ 0 ] + ".<init>()" );
+			return ( Runnable )p.noArgs.newInstance( );
+		}
+
+		if( p.withArgs == null )
+			throw new NoSuchMethodException( args[ 0 ] + ".<init>(String[])" );
+		String[ ] thrArgs = new String[ args.length - 1 ];
+		System.arraycopy( args, 1, thrArgs, 0, thrArgs.length );
+		return ( Runnable )p.withArgs.newInstance( new Object[ ] { thrArgs } );
+	}
+
+	// Records that spawning 'name' took 'nanos'
+	public void spawned( String name, long nanos )
+	{
+		Program p = programs.get( name );
+		if( p == null )
+			return;
+
+		synchronized( p )
+		{
+			p.spawns++;
+			p.totalNanos += nanos;
+			if( nanos > p.maxNanos )
+				p.maxNanos = nanos;
+		}
+	}
+
+	// Appends a line per loaded program to 'rows':
+	// "name spawns average-microseconds max-microseconds", and returns
+	// the number of lines
+	public int report( Vector rows )
+	{
+		int count = 0;
+		for( Program p : programs.values( ) )
+		{
+			synchronized( p )
+			{
+				long avg = ( p.spawns == 0 ? 0 : p.totalNanos / p.spawns );
+				rows.add( p.name + " " + p.spawns + " " + avg / 1000
+					  + " " + p.maxNanos / 1000 );
+			}
+			count++;
+		}
+		return count;
+	}
+
+	private Program program( String name ) throws ClassNotFoundException
+	{
+		Program p = programs.get( name );
+		if( p == null )
+		{
+			p = new Program( name, Class.forName( name ) );
+			Program raced = programs.putIfAbsent( name, p );
+			if( raced != null )
+				p = raced;
+		}
+		return p;
+	}
+}
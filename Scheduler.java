@@ -3,16 +3,48 @@
 // operational synchronization of all executing user threads. This
 // module implements the functionality using a multi-level feed-
 // back queue setup
+//
+// The scheduler can run several virtual CPUs. Each one is a
+// Processor thread with its own run queue that runs one user thread
+// at a time. How that queue is ordered is up to the SchedulingPolicy
+// selected at boot; MLFQ is the default. A thread stays on the CPU it was
+// placed on (soft affinity) unless an idle CPU steals it or the
+// periodic load balance moves it. The Scheduler thread itself only
+// does that balancing
 //------------------------------------------------------------------
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
 public class Scheduler extends Thread
 {
-  private Vector[ ] queues;
+  private Processor[ ] cpus;
+  private ConcurrentHashMap<Thread, TCB> tcbs; // every queued thread's TCB
   private int timeSlice;
-  private static final int DEFAULT_TIME_SLICE = 1000;
+  public static final int DEFAULT_TIME_SLICE = 1000;
   
-  private boolean[ ] tids;
-  private static final int DEFAULT_MAX_THREADS = 10000;
+  // Thread ids come from a stack of recycled ids, then from the ids
+  // never handed out, which are all those at or above nextTid
+  private int[ ] freeTids;
+  private int freeTop;
+  private int nextTid;
+  private int maxThreads;
+  public static final int DEFAULT_MAX_THREADS = 10000;
+
+  // Park dispatch: rather than suspending and resuming user threads,
+  // the scheduler grants and revokes the CPU through each TCB, and a
+  // thread whose grant was revoked parks itself at its next system
+  // call until it is dispatched again
+  private boolean parkDispatch = false;
+  private long contextSwitches = 0;
+  private long switchNanos = 0;
+
+  private boolean tickless = false; // leave a thread alone on its CPU
+  private String policyName = "mlfq";
+  private int[ ] mlfqQuanta;        // per queue slice, null for default
+  private int mlfqBoost;            // ms between MLFQ boosts
+  private int balanceInterval;      // ms between load balances
+  private long migrations = 0;      // threads moved between CPUs
+  private TimerWheel timers;        // wakes threads in sleepThread( )
 
   //----------------------------------------------------------------
   // No parameter constructor, sets the standard time quantum
@@ -36,16 +68,198 @@ public class Scheduler extends Thread
   // scheduler can handle at a given state
   public Scheduler( int quantum, int maxthreads )
   {
-    this.queues = new Vector[ 3 ];
-    this.queues[ 0 ] = new Vector( );
-    this.queues[ 1 ] = new Vector( );
-    this.queues[ 2 ] = new Vector( ); 
+    this.cpus = new Processor[ ] { new Processor( 0 ) };
+    this.tcbs = new ConcurrentHashMap<Thread, TCB>( );
     this.timeSlice = quantum;
-    this.tids = new boolean[ maxthreads ];
-    for( int i = 0; i < maxthreads; i++ )
-      this.tids[ i ] = false;
+    this.balanceInterval = quantum * 2;
+    this.mlfqBoost = quantum * 5;
+    this.maxThreads = maxthreads;
+    this.freeTids = new int[ 16 ];
+    this.freeTop = 0;
+    this.nextTid = 0;
+    this.timers = new TimerWheel( this, 1 );
   }
   
+  //----------------------------------------------------------------
+  // Selects park dispatch instead of Thread.suspend/resume. Must be
+  // called before the scheduler is started
+  // pre : The scheduler has not been started
+  // post: User threads are preempted at their next system call
+  public void setParkDispatch( boolean park )
+  {
+    this.parkDispatch = park;
+  }
+
+  //----------------------------------------------------------------
+  // Sets the number of virtual CPUs. Must be called before the
+  // scheduler is started
+  // pre : The scheduler has not been started, 'n' > 0
+  // post: The scheduler will run 'n' processors
+  public void setProcessors( int n )
+  {
+    this.cpus = new Processor[ n < 1 ? 1 : n ];
+    for( int i = 0; i < this.cpus.length; i++ )
+      this.cpus[ i ] = new Processor( i );
+  }
+
+  public int getProcessors( )
+  {
+    return this.cpus.length;
+  }
+
+  //----------------------------------------------------------------
+  // The number of threads on virtual CPU 'cpu', running or waiting
+  public int runQueueLength( int cpu )
+  {
+    return this.cpus[ cpu ].load( );
+  }
+
+  //----------------------------------------------------------------
+  // Selects the scheduling policy every CPU uses: "mlfq", the
+  // default, "fair", "lottery" or "edf". Must be called before the
+  // scheduler is started
+  // pre : The scheduler has not been started
+  // post: Returns false, changing nothing, if 'name' is unknown
+  public boolean setPolicy( String name )
+  {
+    if( !( name.equals( "mlfq" ) || name.equals( "fair" )
+           || name.equals( "lottery" ) || name.equals( "edf" ) ) )
+      return false;
+
+    this.policyName = name;
+    setProcessors( this.cpus.length );
+    return true;
+  }
+
+  //----------------------------------------------------------------
+  // Tunes the MLFQ policy: the slice length of each of its three
+  // queues, and the milliseconds between boosts of every thread to
+  // queue 0, or 0 for no boosts. Must be called before the
+  // scheduler is started
+  // pre : 'quanta' is null for the default or has 3 elements > 0
+  public void setMlfq( int[ ] quanta, int boost )
+  {
+    this.mlfqQuanta = quanta;
+    this.mlfqBoost = boost;
+    setProcessors( this.cpus.length );
+  }
+
+  //----------------------------------------------------------------
+  // Creates a run queue for one CPU under the selected policy
+  private SchedulingPolicy newPolicy( )
+  {
+    if( policyName.equals( "fair" ) )
+      return new FairSharePolicy( timeSlice );
+    else if( policyName.equals( "lottery" ) )
+      return new LotteryPolicy( timeSlice );
+    else if( policyName.equals( "edf" ) )
+      return new EdfPolicy( timeSlice );
+    else if( mlfqQuanta != null )
+      return new MlfqPolicy( mlfqQuanta, mlfqBoost );
+    else
+      return new MlfqPolicy( new int[ ] { timeSlice / 2, timeSlice / 2,
+                                          timeSlice / 2 }, mlfqBoost );
+  }
+
+  //----------------------------------------------------------------
+  // Called after the kernel changes a thread's tickets or deadline,
+  // so its CPU can put it back in order
+  public void requeueThread( TCB tcb )
+  {
+    cpus[ tcb.getCpu( ) ].requeue( tcb );
+  }
+
+  //----------------------------------------------------------------
+  // Selects tickless running: a thread that is alone on its CPU is not
+  // preempted at the end of its slice, it keeps running until another
+  // thread arrives on that CPU. Must be called before the scheduler
+  // is started
+  public void setTickless( boolean t )
+  {
+    this.tickless = t;
+  }
+
+  //----------------------------------------------------------------
+  // The number of times a thread has been moved to another CPU by
+  // stealing or load balancing
+  public synchronized long getMigrations( )
+  {
+    return migrations;
+  }
+
+  //----------------------------------------------------------------
+  // Called by the kernel on entry to every system call a user thread
+  // makes from its own code, not the ones the kernel makes for it from
+  // inside another. Under park dispatch a thread that no longer holds
+  // the CPU waits here until the scheduler dispatches it again. The
+  // thread holds no kernel lock at this point, so parking cannot
+  // deadlock the kernel
+  // pre : 'tcb' is the calling thread's TCB, null if it is not a
+  //       user thread
+  // post: The calling thread holds the CPU, or is not a user thread
+  public void yieldPoint( TCB tcb )
+  {
+    if( !parkDispatch || tcb == null )
+      return;
+
+    while( !tcb.isDispatched( ) && !tcb.getTerminated( ) )
+      LockSupport.park( this );
+  }
+
+  //----------------------------------------------------------------
+  // The number of times a user thread has been given the CPU, and the
+  // total time in nanoseconds the scheduler spent handing it over
+  // and taking it back
+  public synchronized long getContextSwitches( )
+  {
+    return contextSwitches;
+  }
+
+  public synchronized long getSwitchNanos( )
+  {
+    return switchNanos;
+  }
+
+  //----------------------------------------------------------------
+  // Gives the CPU to 'tcb', starting its thread on first dispatch
+  private void dispatch( TCB tcb )
+  {
+    Thread t = tcb.getThread( );
+    if( tcb.isDispatched( ) && t.isAlive( ) )
+      return;       // still on the CPU from its last slice
+
+    long start = System.nanoTime( );
+    tcb.setDispatched( true );
+    if( !t.isAlive( ) )
+      t.start( );
+    else if( parkDispatch )
+      LockSupport.unpark( t );
+    else
+    {
+      t.resume( );
+      LockSupport.unpark( t );   // may be waiting for the CPU after a sleep
+    }
+    countSwitch( System.nanoTime( ) - start );
+  }
+
+  //----------------------------------------------------------------
+  // Takes the CPU back from 'tcb'. Under park dispatch the thread
+  // stops at its next system call instead of wherever it happens to be
+  private void preempt( TCB tcb )
+  {
+    long start = System.nanoTime( );
+    tcb.setDispatched( false );
+    if( !parkDispatch )
+      tcb.getThread( ).suspend( );
+    countSwitch( System.nanoTime( ) - start );
+  }
+
+  private synchronized void countSwitch( long nanos )
+  {
+    contextSwitches++;
+    switchNanos += nanos;
+  }
+
   //----------------------------------------------------------------
  // Called from the kernel, this function adds a thread to the
  // zero execution queue as prescribed by the multi-level feedback
@@ -54,14 +268,46 @@ public class Scheduler extends Thread
  // post: A new thread control block set to the passed thread
  //       has been added to the zero queue
   public TCB addThread( Thread t )
+  {
+    return addThread( t, null );
+  }
+
+  //----------------------------------------------------------------
+  // The same, starting the thread with the open files 'fds', which
+  // may be null, in its descriptor table
+  public TCB addThread( Thread t, FileTableEntry[ ] fds )
   {
     int tid = getNewTid( );
+    if( tid == -1 )
+      return null;
     TCB curthread = getMyTcb( );
-    int pid = ( curthread != null ? curthread.getTid( ) : -1 );
-    TCB newthrd = new TCB( t, tid, pid );
-    queues[ 0 ].add( newthrd );
+    TCB newthrd = new TCB( t, tid, curthread );
+    if( fds != null )
+      newthrd.inheritFds( fds );
+    tcbs.put( t, newthrd );
+    placeThread( newthrd, curthread ).enqueue( newthrd );
     return newthrd;
   }
+
+  //----------------------------------------------------------------
+  // Picks the CPU a new thread starts on: its parent's, so they
+  // share a cache, unless that CPU is busier than the idlest one
+  // by more than a thread
+  private Processor placeThread( TCB thread, TCB parent )
+  {
+    Processor idlest = cpus[ 0 ];
+    for( int i = 1; i < cpus.length; i++ )
+      if( cpus[ i ].load( ) < idlest.load( ) )
+        idlest = cpus[ i ];
+
+    if( parent != null )
+    {
+      Processor home = cpus[ parent.getCpu( ) ];
+      if( home.load( ) <= idlest.load( ) + 1 )
+        return home;
+    }
+    return idlest;
+  }
   
   //----------------------------------------------------------------
   // Simply sets the current thread's control block to terminated,
@@ -75,79 +321,145 @@ public class Scheduler extends Thread
     if( tcb == null )
       return false;
     
-    tids[ tcb.getTid( ) ] = true;
-    return tcb.setTerminated( );
+    boolean terminated = tcb.setTerminated( );
+    cpus[ tcb.getCpu( ) ].wakeup( );
+    return terminated;
   }
   
+  //----------------------------------------------------------------
+  // Appends one row of accounting per live thread to 'rows', see
+  // TCB.snapshot( ) for the layout. Returns the number of rows added
+  // pre : 'rows' is not null
+  public int snapshot( Vector rows )
+  {
+    long now = System.nanoTime( );
+    int count = 0;
+    for( TCB tcb : tcbs.values( ) )
+    {
+      if( tcb.getTerminated( ) )
+        continue;
+      rows.add( tcb.snapshot( now ) );
+      count++;
+    }
+    return count;
+  }
+
   //----------------------------------------------------------------
   // Return the TCB of the currently executing thread. Returns null
-  // if there is no executing thread. 
+  // if there is no executing thread. The lookup is a single hash
+  // probe on the calling thread, with no lock and no queue scan, so
+  // system calls cost the same however many threads there are
   // pre : none
   // post: A handle to the current thread is returned
   public TCB getMyTcb( )
   {
-    Thread thrd = Thread.currentThread( );
-    synchronized( queues )
+    return tcbs.get( Thread.currentThread( ) );
+  }
+
+  //----------------------------------------------------------------
+  // Puts the calling thread to sleep for 'millis' milliseconds. A
+  // user thread leaves its run queue and parks, so the CPU goes to
+  // other threads rather than to quanta it cannot use; the timer
+  // wheel puts it back on its CPU when its time is up, and it then
+  // waits to be dispatched. Any other thread simply sleeps
+  // pre : Parameter 'millis' is > 0
+  // post: Thread has slept for 'millis' time and holds the CPU again
+  public void sleepThread( int millis )
+  {
+    TCB tcb = getMyTcb( );
+    if( tcb == null || millis <= 0 )
     {
-      for( int i = 0; i < 3; i++ )
-      {
-        for( int j = 0; j < queues[ i ].size( ); j++ )
-        {
-          TCB check = ( TCB )queues[ i ].elementAt( j );
-          Thread t = check.getThread( ); 
-          if( t != null && t == thrd )
-            return check;
-        } 
-      }
+      try { Thread.sleep( millis > 0 ? millis : 0 ); }
+      catch( InterruptedException ie ) { }
+      return;
+    }
+
+    tcb.beginWait( System.nanoTime( ) );
+    cpus[ tcb.getCpu( ) ].sleep( tcb );
+    timers.schedule( tcb, millis );
+
+    while( tcb.isSleeping( ) || !tcb.isDispatched( ) )
+      LockSupport.park( this );
+  }
+
+  //----------------------------------------------------------------
+  // Takes the calling thread off its CPU until unblockThread( ) is
+  // called for it, like sleepThread( ) without a timer. An unblock
+  // that comes first is not lost but makes this return at once, as
+  // may a stale one, so callers check again what they waited for
+  public void blockThread( TCB tcb )
+  {
+    if( tcb == null )
+    {
+      LockSupport.parkNanos( this, 1000000 );
+      return;
     }
-    return null;
+
+    tcb.beginWait( System.nanoTime( ) );
+    cpus[ tcb.getCpu( ) ].sleep( tcb );
+    if( !tcb.block( ) )
+      wakeThread( tcb );       // unblocked on the way to sleep
+
+    while( tcb.isSleeping( ) || !tcb.isDispatched( ) )
+      LockSupport.park( this );
   }
 
-  //---------------------------------------------------------------
-  // Returns the index of the queue whose thread should run.
-  // Current thread is defined by
-  // the MLFQ algorithm to be the next thread in the zero queue, 
-  // and the next thread in the one queue of the zero queue is
-  // empty, and so on for the two queue 
-  private int nextPriority( )
+  //----------------------------------------------------------------
+  // Puts a thread blocked in blockThread( ) back on its CPU's run
+  // queue, or has its next blockThread( ) return at once
+  public void unblockThread( TCB tcb )
   {
-    if( !this.queues[ 0 ].isEmpty( ) )
-      return 0;
-    else if( !this.queues[ 1 ].isEmpty( ) )
-      return 1;
-    else if( !this.queues[ 2 ].isEmpty( ) )
-      return 2;
-    else
-      return -1;
+    if( tcb.unblock( ) )
+      wakeThread( tcb );
   }
 
   //----------------------------------------------------------------
-  // This scheduler thread sleeps for a given time quantum
-  // pre : Parameter 'quantum' is > 0
-  // post: Thread has slept for 'quantum' time
-  public void sleepThread( int quantum )
+  // Called by the timer wheel when a sleeping thread's time is up,
+  // and by unblockThread( ), to put it back on the CPU it left
+  public void wakeThread( TCB tcb )
   {
-    try { Thread.sleep( quantum ); }
-    catch( InterruptedException ie ) { }
+    long now = System.nanoTime( );
+    tcb.endWait( now, false );
+    tcb.setSleeping( false, now );
+    cpus[ tcb.getCpu( ) ].enqueue( tcb );
+    LockSupport.unpark( tcb.getThread( ) );
   }
   
   //----------------------------------------------------------------
-  // Sets the lowest available thread id value to unavailable, then
-  // returns it, if there are no available tids, the scheduler is
-  // maxed and -1 is returned
+  // Returns an unused thread id in constant time, preferring the most
+  // recently freed one. If there are no available tids, the scheduler
+  // is maxed and -1 is returned
   // pre : none
-  // post: The index of an available thread id is returned, or if
-  //       none, -1 is returned
-  private int getNewTid( )
+  // post: The returned thread id is in use, or if none, -1 is returned
+  private synchronized int getNewTid( )
   {
-    for( int i = 0; i < tids.length; i++ )
-      if( !this.tids[ i ] )
-      {
-        this.tids[ i ] = true;
-        return i;
-      }
+    if( freeTop > 0 )
+      return freeTids[ --freeTop ];
+    if( nextTid < maxThreads )
+      return nextTid++;
     return -1;
   }
+
+  //----------------------------------------------------------------
+  // Gives up one of the holds on 'tcb''s thread id, see TCB.release( ),
+  // freeing the id when it was the last
+  public void releaseTid( TCB tcb )
+  {
+    if( tcb.release( ) )
+      freeTid( tcb.getTid( ) );
+  }
+
+  //----------------------------------------------------------------
+  // Returns the id of a thread that has been removed from its queue
+  // to the free stack, growing the stack if it is full
+  // pre : 'tid' was handed out by getNewTid( ) and has been released
+  // post: 'tid' will be handed out again
+  private synchronized void freeTid( int tid )
+  {
+    if( freeTop == freeTids.length )
+      freeTids = Arrays.copyOf( freeTids, freeTids.length * 2 );
+    freeTids[ freeTop++ ] = tid;
+  }
   
   //----------------------------------------------------------------
   // Returns the max number of threads this scheduler can support
@@ -155,91 +467,262 @@ public class Scheduler extends Thread
   // post: Max number of supported threads is returned
   public int getMaxThreads( )
   {
-    return tids.length;
+    return maxThreads;
   }
   
   //----------------------------------------------------------------
-  // Resets the thread's priority by moving it to the back of the
-  // next queue up. If the current queue is 2 however the thread is
-  // moved to the back of the queue
-  // pre : Parameter 'q_index' is between 0 and 2, 'thread' != null 
-  private void reprioritizeThread( TCB thread, int q_index )
+  // Takes a waiting thread from the busiest other CPU for an idle
+  // one. Returns false if nobody has a thread to spare
+  private boolean steal( Processor thief )
   {
-      if( q_index == 2 )
-      {
-        queues[ 2 ].remove( thread );
-        queues[ 2 ].add( thread );
-      }
-      else
+    Processor victim = null;
+    for( int i = 0; i < cpus.length; i++ )
+      if( cpus[ i ] != thief && cpus[ i ].load( ) > 1
+          && ( victim == null || cpus[ i ].load( ) > victim.load( ) ) )
+        victim = cpus[ i ];
+
+    return ( victim != null && migrate( victim, thief ) );
+  }
+
+  //----------------------------------------------------------------
+  // Moves one waiting thread from 'from' to 'to'. It keeps its MLFQ
+  // level, virtual runtime, tickets or deadline
+  private boolean migrate( Processor from, Processor to )
+  {
+    TCB moved = from.takeWaiting( );
+    if( moved == null )
+      return false;
+
+    to.enqueue( moved );
+    synchronized( this ) { migrations++; }
+    return true;
+  }
+
+  //----------------------------------------------------------------
+  // Evens out the CPUs by moving threads from the busiest one to the
+  // idlest one until they differ by at most one thread
+  private void balance( )
+  {
+    for( int moves = 0; moves < tcbs.size( ); moves++ )
+    {
+      Processor busiest = cpus[ 0 ], idlest = cpus[ 0 ];
+      for( int i = 1; i < cpus.length; i++ )
       {
-        queues[ q_index ].remove( thread );
-        queues[ q_index + 1 ].add( thread );
+        if( cpus[ i ].load( ) > busiest.load( ) )
+          busiest = cpus[ i ];
+        if( cpus[ i ].load( ) < idlest.load( ) )
+          idlest = cpus[ i ];
       }
+
+      if( busiest.load( ) - idlest.load( ) <= 1
+          || !migrate( busiest, idlest ) )
+        return;
+    }
   }
-  
+
   //----------------------------------------------------------------
-  // Business logic of the scheduler. This attempts to execute the
-  // current thread, and if that thread is not finished executing
-  // when its quantum is over it is moved to the back of the next
-  // queue. If that queue is two however, it is continuously pushed
-  // to the back of that queue until it is done executing
+  // Business logic of the scheduler thread. Starts every CPU, then
+  // balances their load every few quanta
   public void run( )
   {
-    TCB curthread = null;
-    int q_index = -1;
-    int phase[ ] = new int[ 3 ];
-    phase[ 0 ] = 0;
-    phase[ 1 ] = 0;
-    phase[ 2 ] = 0;
+    timers.start( );
+    for( int i = 0; i < cpus.length; i++ )
+      cpus[ i ].start( );
 
     while( true )
     {
-      q_index = nextPriority( );
-      curthread = ( q_index > -1 ? 
-		( TCB )queues[ q_index ].firstElement( ) : null );   
-      try
+      sleepThread( balanceInterval );
+      if( cpus.length > 1 )
+        balance( );
+    }
+  }
+
+  //------------------------------------------------------------------
+  // class Processor, one virtual CPU. It owns a run queue, ordered by
+  // the scheduling policy chosen at boot, and runs the thread the
+  // policy picks for a slice at a time. With the default MLFQ policy
+  // this is exactly what the single CPU scheduler did
+  //------------------------------------------------------------------
+  private class Processor extends Thread
+  {
+    private SchedulingPolicy policy;   // also the lock for this CPU
+    private TCB current;               // the thread on this CPU, never stolen
+    private int id;
+
+    public Processor( int id )
+    {
+      this.id = id;
+      this.policy = newPolicy( );
+      setName( "threadOS cpu" + id );
+    }
+
+    //----------------------------------------------------------------
+    // Adds a thread to this CPU's run queue, waking the CPU if it was
+    // idle
+    public void enqueue( TCB thread )
+    {
+      synchronized( policy )
       {
-      // Handle appropriate thread execution
-      if( curthread == null || curthread.getThread( ) == null )
-        continue;
-      else if( curthread != null &&
-              curthread.getTerminated( ) && q_index > -1 )
+        thread.setCpu( id );
+        policy.add( thread );
+        policy.notifyAll( );
+      }
+    }
+
+    //----------------------------------------------------------------
+    // Repositions a thread whose scheduling parameters changed
+    public void requeue( TCB thread )
+    {
+      synchronized( policy )
+      {
+        policy.remove( thread );
+        policy.add( thread );
+      }
+    }
+
+    //----------------------------------------------------------------
+    // Takes a thread that is going to sleep off this CPU, ending its
+    // slice now
+    public void sleep( TCB thread )
+    {
+      synchronized( policy )
+      {
+        policy.remove( thread );
+        thread.setSleeping( true, 0 );
+        thread.setDispatched( false );
+        policy.notifyAll( );
+      }
+    }
+
+    //----------------------------------------------------------------
+    // Wakes this CPU's dispatcher, e.g. because its thread exited
+    public void wakeup( )
+    {
+      synchronized( policy )
+      {
+        policy.notifyAll( );
+      }
+    }
+
+    //----------------------------------------------------------------
+    // The number of threads on this CPU, running or waiting
+    public int load( )
+    {
+      synchronized( policy )
+      {
+        return policy.size( );
+      }
+    }
+
+    //----------------------------------------------------------------
+    // Removes and returns a waiting thread another CPU can take
+    public TCB takeWaiting( )
+    {
+      synchronized( policy )
+      {
+        return policy.takeWaiting( current );
+      }
+    }
+
+    //----------------------------------------------------------------
+    // Blocks an idle CPU until a thread is added to it. With other
+    // CPUs around it wakes up now and then to try stealing again
+    private void idle( )
+    {
+      synchronized( policy )
       {
-        phase[ q_index ] = 0;
-        queues[ q_index ].remove( curthread );
+        if( policy.size( ) != 0 )
+          return;
+        try { policy.wait( cpus.length > 1 ? balanceInterval : 0 ); }
+        catch( InterruptedException ie ) { }
       }
-      else
+    }
+
+    //----------------------------------------------------------------
+    // Lets 'thread' run for 'millis', returning early if it exits or
+    // goes to sleep.
+    // In tickless mode the slice does not end while the thread is the
+    // only one on this CPU
+    private void runSlice( TCB thread, int millis )
+    {
+      long end = System.currentTimeMillis( ) + millis;
+      synchronized( policy )
       {
-        if( !curthread.getThread( ).isAlive( ) )
-          curthread.getThread( ).start( );
+        try
+        {
+          long left;
+          while( !thread.getTerminated( ) && !thread.isSleeping( )
+                 && ( left = end - System.currentTimeMillis( ) ) > 0 )
+            policy.wait( left );
+
+          while( tickless && !thread.getTerminated( ) && policy.size( ) == 1
+                 && !thread.isSleeping( ) && thread.getThread( ).isAlive( ) )
+            policy.wait( );
+        }
+        catch( InterruptedException ie ) { }
+      }
+    }
+
+    //----------------------------------------------------------------
+    // Business logic of the scheduler. This attempts to execute the
+    // thread the policy picks, and if that thread is not finished
+    // executing when its slice is over the policy repositions it;
+    // under MLFQ it is moved to the back of the next queue. A CPU
+    // with nothing to run tries to steal a thread from another
+    public void run( )
+    {
+      TCB curthread = null;
+
+      while( true )
+      {
+        synchronized( policy )
+        {
+          curthread = policy.next( );
+          current = curthread;
+        }
+
+        // Handle appropriate thread execution, blocking when there
+        // is nothing to run rather than spinning
+        if( curthread == null || curthread.getThread( ) == null )
+        {
+          if( cpus.length == 1 || !steal( this ) )
+            idle( );
+          continue;
+        }
+        else if( curthread.getTerminated( ) )
+        {
+          synchronized( policy )
+          {
+            policy.remove( curthread );
+          }
+          tcbs.remove( curthread.getThread( ) );
+          releaseTid( curthread );
+        }
         else
-          curthread.getThread( ).resume( );
-        
-        // Allow execution of current thread for half a quantum
-        sleepThread( timeSlice / 2 );
-	if( q_index > -1 )
-          phase[ q_index ]++;
-
-      
-        // If that thread is still not finished executing then
-        // reprioritize it and temporarily suspend it
-        if( curthread != null && curthread.getThread( ) != null
-             && curthread.getThread( ).isAlive( ) && q_index > - 1 )
         {
-          synchronized( queues )
+          curthread.startRun( System.nanoTime( ) );
+          dispatch( curthread );
+          
+          // Allow execution of current thread for one slice
+          long start = System.currentTimeMillis( );
+          runSlice( curthread, policy.quantum( curthread ) );
+          curthread.stopRun( System.nanoTime( ) );
+
+          // If that thread is still not finished executing then
+          // reprioritize it and temporarily suspend it. A thread that
+          // went to sleep has already left the queue
+          synchronized( policy )
           {
-          curthread.getThread( ).suspend( );
-	  if( q_index == 0 || phase[ q_index ] == ( 2 * q_index ) )
-	  {
-	    phase[ q_index ] = 0;
-            reprioritizeThread( curthread, q_index );
-	  }
+            if( curthread.getThread( ).isAlive( )
+                && !curthread.getTerminated( ) && !curthread.isSleeping( ) )
+            {
+              preempt( curthread );
+              policy.expired( curthread,
+                              System.currentTimeMillis( ) - start );
+            }
           }
         }
-       
-      }
       }
-      catch( NullPointerException npe ) {  }
     }
   }
 }
@@ -0,0 +1,40 @@
+//------------------------------------------------------------------
+// interface SchedulingPolicy, the run queue discipline of one virtual
+// CPU. The Processor calls it under its own lock, so a policy need
+// not be thread safe. The thread next( ) returns stays in the policy
+// while it runs; when its slice is used up the Processor hands it back
+// through expired( ), and removes it once it has terminated
+//------------------------------------------------------------------
+public interface SchedulingPolicy
+{
+  //----------------------------------------------------------------
+  // Adds a runnable thread, new or migrated from another CPU
+  public void add( TCB thread );
+
+  //----------------------------------------------------------------
+  // Removes a thread, whether it is running or waiting
+  public void remove( TCB thread );
+
+  //----------------------------------------------------------------
+  // Returns the thread that should be on the CPU now without removing
+  // it, or null if there is none
+  public TCB next( );
+
+  //----------------------------------------------------------------
+  // The length in milliseconds of the next slice of 'thread'
+  public int quantum( TCB thread );
+
+  //----------------------------------------------------------------
+  // Called when 'thread' has run a full slice of 'ran' milliseconds
+  // and is still runnable, so the policy can reposition it
+  public void expired( TCB thread, long ran );
+
+  //----------------------------------------------------------------
+  // Removes and returns a thread other than 'running' that can move
+  // to another CPU, or null if there is none
+  public TCB takeWaiting( TCB running );
+
+  //----------------------------------------------------------------
+  // The number of threads held, running or waiting
+  public int size( );
+}
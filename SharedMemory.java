@@ -0,0 +1,43 @@
+// SharedMemory, the named memory segments made by SysLib.shmget( ).
+// Every thread that asks for a segment by name gets a view of the same
+// bytes, so what one thread puts there the others see without a system
+// call or a copy. Each view has its own position and limit. Threads
+// sharing a segment agree among themselves on how to take turns, e.g.
+// through a pipe. A segment lasts until SysLib.shmrm( ) removes its
+// name; views already handed out stay usable
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+public class SharedMemory
+{
+	public final static int MAX_SIZE = 1 << 26;
+
+	private final ConcurrentHashMap<String, ByteBuffer> segments
+		= new ConcurrentHashMap<String, ByteBuffer>( );
+
+	// Returns a view of segment 'name', making it 'size' bytes long if
+	// there is no such segment yet. Returns null if the segment exists
+	// but is smaller than 'size', or 'size' is out of range
+	public ByteBuffer get( String name, int size )
+	{
+		if( size < 0 || size > MAX_SIZE )
+			return null;
+
+		ByteBuffer segment = segments.get( name );
+		if( segment == null )
+		{
+			ByteBuffer made = ByteBuffer.allocateDirect( size );
+			segment = segments.putIfAbsent( name, made );
+			if( segment == null )
+				segment = made;
+		}
+		if( segment.capacity( ) < size )
+			return null;
+		return segment.duplicate( );
+	}
+
+	// Forgets segment 'name'. Returns false if there is none
+	public boolean remove( String name )
+	{
+		return segments.remove( name ) != null;
+	}
+}
@@ -3,11 +3,28 @@
 // The shell component of the threadOS operating system simulator
 // This module extends the general functionality of a thread, and
 // thusly behaves like any other threadOS process
+//
+// A command line is a list of commands separated by '&', ';' and '|'.
+// Commands joined by '&' run in parallel, and a ';' or the end of the
+// line waits for every one of them to exit; a line ending in '&' is
+// left running. Commands joined by '|' run in parallel as a pipeline,
+// each one's standard output feeding the next one's standard input
+//
+// Two commands are built in, to measure a program from inside threadOS:
+//   time cmd [args]                 runs cmd once
+//   bench -n N [-c C] cmd [args]    runs cmd N times, C at a time
+// Both report the time taken and how much the kernel's counters went
+// up meanwhile; bench adds throughput and latency percentiles
+//
+// usage: Shell [script], where script is a threadOS file of command
+//        lines to run instead of reading them from the keyboard
 //------------------------------------------------------------------
 import java.util.*;
 public class Shell extends Thread
 {
-  
+ private String script = null;        // file of commands, or null
+ private Vector<String> lines = null; // its lines not run yet
+
  //------------------------------------------------------------------
  // class constructor
  // pre : none
@@ -15,27 +32,37 @@ public class Shell extends Thread
  public Shell( )
  {
  }
+
+ //------------------------------------------------------------------
+ // Makes a shell that runs the commands in file 'args[ 0 ]'
+ // pre : none
+ // post: none
+ public Shell( String[ ] args )
+ {
+   if( args.length > 0 )
+     script = args[ 0 ];
+ }
  
  //------------------------------------------------------------------
- // Parses a string tokenizer around the sequences '&' and ';', all
- // other tokens are assumed to be part of the same sequence until 
+ // Parses a string tokenizer around the sequences '&', ';' and '|',
+ // all other tokens are assumed to be part of the same sequence until 
  // one such character is reached. Throws illegal argument exception
  // if the parameter 'st' is null
  // pre : Parameter 'st' is not null
  // post: A string array whose elements consist of either a process
- //       name followed by its arguments, a "&" delimiter, or a ";"
- //       delimiter is returned
+ //       name followed by its arguments, a "&" delimiter, a ";"
+ //       delimiter or a "|" delimiter is returned
  private String[ ] parseBuffer( StringTokenizer st )
  {
    if( st == null ) 
      throw new IllegalArgumentException( );
    
-   String[ ] retval = new String[ st.countTokens( ) ];
+   String[ ] retval = new String[ st.countTokens( ) + 1 ]; // null ended
    int numatkns = 0;
    while( st.hasMoreTokens( ) )
    {
      String tkn = st.nextToken( );
-     if( tkn.equals( "&" ) || tkn.equals( ";" ) )
+     if( tkn.equals( "&" ) || tkn.equals( ";" ) || tkn.equals( "|" ) )
      {
        numatkns++;
        retval[ numatkns ] = tkn;
@@ -55,6 +82,27 @@ public class Shell extends Thread
   return retval;
  }
  
+ //------------------------------------------------------------------
+ // Maps the shell's command names onto the programs behind them:
+ // "top" runs Top, "ps" runs Top for a single snapshot, "progs"
+ // shows Top's table of loaded programs and "metrics" its table of
+ // system call latencies and kernel gauges. Anything else is taken
+ // to be a class name
+ // pre : Parameter 'args' has at least one element
+ // post: The argument vector to hand to SysLib.exec( ) is returned
+ private String[ ] alias( String[ ] args )
+ {
+   if( args[ 0 ].equals( "top" ) )
+     args[ 0 ] = "Top";
+   else if( args[ 0 ].equals( "ps" ) && args.length == 1 )
+     args = new String[ ] { "Top", "-d", "100", "-n", "1" };
+   else if( args[ 0 ].equals( "progs" ) && args.length == 1 )
+     args = new String[ ] { "Top", "-p" };
+   else if( args[ 0 ].equals( "metrics" ) && args.length == 1 )
+     args = new String[ ] { "Top", "-m" };
+   return args;
+ }
+
  //------------------------------------------------------------------
  // Derived from its super class, this function executes the shell's
  // business logic, namely the elicitation and appropriate processing
@@ -65,28 +113,320 @@ public class Shell extends Thread
  //       those processes have occurred
  public void run( )
  {
+   if( script != null && ( lines = readScript( script ) ) == null )
+   {
+     SysLib.cerr( "Shell: cannot read " + script + "\n" );
+     SysLib.exit( );
+     return;
+   }
+
    int shellCount = 0;
    while( true )
    { 
-     StringBuffer inBuffer = new StringBuffer( );
      shellCount++;
-     SysLib.cout( "shell["+shellCount+"]% " );
-     SysLib.cin( inBuffer );
-     if( inBuffer.toString( ).equals( "exit" ) )
+     String line = nextLine( shellCount );
+     if( line == null || line.equals( "exit" ) )
        break;
 
-     String[ ] cmdline =
-       parseBuffer( new StringTokenizer( inBuffer.toString( ) ) ) ;
+     String[ ] cmdline = parseBuffer( new StringTokenizer( line ) ) ;
 
+     Vector<Integer> group = new Vector<Integer>( );
+     String last = null;
      for( int i = 0; cmdline[ i ] != null; i++ )
      {
+       last = cmdline[ i ];
        if( cmdline[ i ].equals( "&" ) ) {/*continue with next cmd*/}
        else if( cmdline[ i ].equals( ";" ) )
-         SysLib.join( );
+         waitFor( group );
+       else if( cmdline[ i ].equals( "|" ) ) {/*part of a pipeline*/}
+       else
+       {
+         // the command and any commands piped from it
+         Vector<String[ ]> stages = new Vector<String[ ]>( );
+         stages.add( alias( SysLib.stringToArgs( cmdline[ i ] ) ) );
+         while( cmdline[ i + 1 ] != null && cmdline[ i + 1 ].equals( "|" )
+                && cmdline[ i + 2 ] != null
+                && !isDelimiter( cmdline[ i + 2 ] ) )
+         {
+           i += 2;
+           stages.add( alias( SysLib.stringToArgs( cmdline[ i ] ) ) );
+         }
+         if( stages.size( ) > 1 || !builtin( stages.elementAt( 0 ), group ) )
+           pipeline( stages, group );
+       }
+     }
+     if( last == null || !last.equals( "&" ) )
+       waitFor( group );
+   }
+   if( script == null )
+     SysLib.cout( "EOA!" );
+   else
+     SysLib.exit( );
+ }
+
+ //------------------------------------------------------------------
+ // Returns the next command line, from the script if there is one
+ // and otherwise from the keyboard after a prompt
+ // pre : none
+ // post: The line is returned, or null if there are no more
+ private String nextLine( int shellCount )
+ {
+   if( script != null )
+     return ( lines.isEmpty( ) ? null : lines.remove( 0 ) );
+
+   StringBuffer inBuffer = new StringBuffer( );
+   SysLib.cout( "shell["+shellCount+"]% " );
+   if( SysLib.cin( inBuffer ) < 0 )
+     return null;                      // end of input
+   return inBuffer.toString( );
+ }
+
+ //------------------------------------------------------------------
+ // Reads the command lines of a script, leaving out blank lines and
+ // lines starting with '#'
+ // pre : Parameter 'name' is not null
+ // post: The lines are returned, or null if the file cannot be read
+ private Vector<String> readScript( String name )
+ {
+   int fd = SysLib.open( name, "r" );
+   if( fd < 0 )
+     return null;
+   byte[ ] data = new byte[ Math.max( SysLib.fsize( fd ), 0 ) ];
+   int got = SysLib.read( fd, data );
+   SysLib.close( fd );
+   if( got < 0 )
+     return null;
+
+   Vector<String> result = new Vector<String>( );
+   StringTokenizer st = new StringTokenizer( new String( data, 0, got ),
+                                             "\n" );
+   while( st.hasMoreTokens( ) )
+   {
+     String line = st.nextToken( ).trim( );
+     if( line.length( ) > 0 && !line.startsWith( "#" ) )
+       result.add( line );
+   }
+   return result;
+ }
+
+ private boolean isDelimiter( String s )
+ {
+   return s.equals( "&" ) || s.equals( ";" ) || s.equals( "|" );
+ }
+
+ //------------------------------------------------------------------
+ // Starts the programs in 'stages' side by side, with a pipe from
+ // each one's standard output to the next one's standard input. The
+ // pipes are set up as descriptors 0 and 1 of this shell when each
+ // program is started, which it inherits, and are then put back.
+ // The shell keeps no end of a pipe open, and the read end it holds
+ // while starting a pipe's writer is close on exec, so a program
+ // reading a pipe sees the end of its input once the program before
+ // it exits, and one writing a pipe fails once the next one exits
+ // pre : Parameter 'stages' has at least one element
+ // post: The started programs' thread ids are added to 'group'
+ private void pipeline( Vector<String[ ]> stages, Vector<Integer> group )
+ {
+   int in = -1;                        // read end for the next stage
+   for( int s = 0; s < stages.size( ); s++ )
+   {
+     int[ ] fds = null;
+     if( s + 1 < stages.size( ) )
+     {
+       fds = new int[ 2 ];
+       if( SysLib.pipe( fds ) < 0 )
+       {
+         SysLib.cerr( "Shell: cannot make a pipe\n" );
+         fds = null;
+       }
        else
-         SysLib.exec( SysLib.stringToArgs( cmdline[ i ] ) );
+         SysLib.cloexec( fds[ 0 ] );
      }
+
+     int savedIn = redirect( 0, in );
+     int savedOut = redirect( 1, fds == null ? -1 : fds[ 1 ] );
+     int tid = SysLib.exec( stages.elementAt( s ) );
+     restore( 0, savedIn );
+     restore( 1, savedOut );
+     if( tid >= 0 )
+       group.add( tid );
+     in = ( fds == null ? -1 : fds[ 0 ] );
+   }
+   if( in >= 0 )
+     SysLib.close( in );
+ }
+
+ //------------------------------------------------------------------
+ // Moves open descriptor 'to' onto descriptor 'fd', keeping a copy
+ // of what 'fd' was. Does nothing if 'to' < 0
+ // pre : none
+ // post: The copy to give restore( ) is returned: a descriptor, -1
+ //       if 'fd' was the console, or -2 if nothing was done
+ private int redirect( int fd, int to )
+ {
+   if( to < 0 )
+     return -2;
+   int saved = SysLib.dup( fd );
+   if( saved >= 0 )
+     SysLib.cloexec( saved );
+   SysLib.dup2( to, fd );
+   SysLib.close( to );
+   return saved;
+ }
+
+ //------------------------------------------------------------------
+ // Undoes redirect( )
+ // pre : Parameter 'saved' is what redirect( ) returned for 'fd'
+ // post: Descriptor 'fd' is as it was before redirect( )
+ private void restore( int fd, int saved )
+ {
+   if( saved == -2 )
+     return;
+   if( saved >= 0 )
+   {
+     SysLib.dup2( saved, fd );
+     SysLib.close( saved );
+   }
+   else
+     SysLib.close( fd );
+ }
+
+ //------------------------------------------------------------------
+ // Runs 'args' if it is the time or bench command
+ // pre : Parameter 'args' has at least one element
+ // post: True is returned if 'args' was a built-in command, which has
+ //       run to completion; children it reaped are gone from 'group'
+ private boolean builtin( String[ ] args, Vector<Integer> group )
+ {
+   int runs = 1;
+   int concurrency = 1;
+   int i = 1;
+   if( args[ 0 ].equals( "bench" ) )
+   {
+     try
+     {
+       for( ; i + 1 < args.length && args[ i ].startsWith( "-" ); i += 2 )
+       {
+         if( args[ i ].equals( "-n" ) )
+           runs = Integer.parseInt( args[ i + 1 ] );
+         else if( args[ i ].equals( "-c" ) )
+           concurrency = Integer.parseInt( args[ i + 1 ] );
+         else
+           break;
+       }
+     }
+     catch( NumberFormatException e )
+     {
+       runs = 0;
+     }
+   }
+   else if( !args[ 0 ].equals( "time" ) )
+     return false;
+
+   if( i >= args.length || runs < 1 || concurrency < 1 )
+   {
+     SysLib.cerr( "usage: time cmd [args] | "
+                  + "bench -n N [-c C] cmd [args]\n" );
+     return true;
+   }
+   String[ ] cmd = new String[ args.length - i ];
+   System.arraycopy( args, i, cmd, 0, cmd.length );
+   bench( alias( cmd ), runs, concurrency, args[ 0 ].equals( "bench" ),
+          group );
+   return true;
+ }
+
+ //------------------------------------------------------------------
+ // Runs 'cmd' 'runs' times, keeping 'concurrency' of them running,
+ // and reports the wall time and the kernel counter deltas, and with
+ // 'summary' throughput and the latency of a run, from its exec to
+ // its exit, at the 50th, 95th and 99th percentiles
+ // pre : Parameters 'runs' and 'concurrency' are > 0
+ // post: Every run has exited; children of 'group' that exited
+ //       meanwhile are gone from it
+ private void bench( String[ ] cmd, int runs, int concurrency,
+                     boolean summary, Vector<Integer> group )
+ {
+   LatencyHistogram latency = new LatencyHistogram( );
+   Hashtable<Integer, Long> started = new Hashtable<Integer, Long>( );
+   long[ ] before = new long[ Kernel.STAT_SIZE ];
+   long[ ] after = new long[ Kernel.STAT_SIZE ];
+   int launched = 0;
+   int failed = 0;
+
+   SysLib.stat( before );
+   long start = System.nanoTime( );
+   while( launched < runs || !started.isEmpty( ) )
+   {
+     while( launched < runs && started.size( ) < concurrency )
+     {
+       launched++;
+       long t = System.nanoTime( );
+       int tid = SysLib.exec( cmd );
+       if( tid < 0 )
+         failed++;
+       else
+         started.put( tid, t );
+     }
+     if( started.isEmpty( ) )
+       continue;
+
+     int tid = SysLib.join( );
+     if( tid < 0 )
+       break;
+     Long t = started.remove( tid );
+     if( t != null )
+       latency.record( System.nanoTime( ) - t );
+     else
+       group.remove( Integer.valueOf( tid ) );  // not one of ours
+   }
+   long wall = System.nanoTime( ) - start;
+   SysLib.stat( after );
+
+   if( summary )
+   {
+     SysLib.cout( runs + " runs (" + failed + " failed), " + concurrency
+                  + " at a time, " + millis( wall ) + " ms, "
+                  + String.format( "%.1f", ( runs - failed ) * 1e9
+                                   / Math.max( wall, 1 ) )
+                  + " runs/s\n" );
+     SysLib.cout( "latency ms: p50 " + millis( latency.percentile( 50 ) )
+                  + " p95 " + millis( latency.percentile( 95 ) )
+                  + " p99 " + millis( latency.percentile( 99 ) )
+                  + " min " + millis( latency.min( ) )
+                  + " max " + millis( latency.max( ) )
+                  + " mean " + millis( latency.mean( ) ) + "\n" );
+   }
+   else
+     SysLib.cout( "real " + millis( wall ) + " ms\n" );
+
+   String counters = "";
+   for( int k = 0; k < Kernel.STAT_SIZE; k++ )
+     counters += ( k == 0 ? "" : ", " ) + Kernel.STAT_NAMES[ k ] + " "
+                 + ( after[ k ] - before[ k ] );
+   SysLib.cout( counters + "\n" );
+ }
+
+ private static String millis( long nanos )
+ {
+   return String.format( "%.3f", nanos / 1e6 );
+ }
+
+ //------------------------------------------------------------------
+ // Waits until every child in 'group' has exited. SysLib.join( )
+ // returns when any child exits, which may be one started earlier
+ // in the background; that one is crossed off too
+ // pre : none
+ // post: 'group' is empty
+ private void waitFor( Vector<Integer> group )
+ {
+   while( !group.isEmpty( ) )
+   {
+     int tid = SysLib.join( );
+     if( tid < 0 )
+       break;
+     group.remove( Integer.valueOf( tid ) );
    }
-  SysLib.cout( "EOA!" );
+   group.clear( );
  }
 }
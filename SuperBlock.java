@@ -1,13 +1,18 @@
 // Represents the superblock module in memory, is responsible
 // for maintaining the disk, returning free blocks
+//
+// Free space is described by two numbers rather than a list threaded
+// through every block. Every block at or above freeHigh has never been
+// handed out and is free. Blocks below it that have been given back are
+// kept on the freeList stack, each one holding the number of the next
 class SuperBlock
 {
 	public final int defaultInodeBlocks = 64;
 	private int totalBlocks;
 	private int inodeBlocks; //num files
-	private int freeList;
+	private int freeList;    //top of the returned block stack, -1 if empty
 
-	public int lastFree;
+	public int freeHigh;     //first block never allocated
 
 	public SuperBlock ( int diskSize ) {
 		// read the superblock from disk
@@ -17,102 +22,123 @@ class SuperBlock
 		this.totalBlocks = SysLib.bytes2int( superBlock, 0 );
 		this.inodeBlocks = SysLib.bytes2int( superBlock, 4 );
 		this.freeList = SysLib.bytes2int( superBlock, 8 );
-		this.lastFree = SysLib.bytes2int( superBlock, 12 );
+		this.freeHigh = SysLib.bytes2int( superBlock, 12 );
 
 		//disk haS been formatted?
-		if ( !( this.totalBlocks == diskSize &&
-			 this.inodeBlocks > 0 && this.freeList >= 2
-			&& this.lastFree <= this.totalBlocks) )
+		if ( !( this.totalBlocks == diskSize && this.inodeBlocks > 0
+			&& this.freeHigh > this.inodeBlocks
+			&& this.freeHigh <= this.totalBlocks
+			&& ( this.freeList == -1 || ( this.freeList > this.inodeBlocks
+				&& this.freeList < this.freeHigh ) ) ) )
 		 {
 			//need to format disk
 			this.totalBlocks = diskSize;
-			this.lastFree = diskSize - 1;
 			format( defaultInodeBlocks );
 		}
 	}
 
+	// Lazy format: writes the inode blocks and the superblock and
+	// nothing else, so it costs the same whatever the disk size
 	public int format (int numInodes ) {
 		//creates inodeBlocks full of inodes and writes them to disk.
 
-		this.inodeBlocks = numInodes / 16;
-		this.freeList = this.inodeBlocks + 1;
+		int perBlock = Inode.inodesPerBlock( );
+		this.inodeBlocks = ( numInodes + perBlock - 1 ) / perBlock;
+		this.freeList = -1;
+		this.freeHigh = this.inodeBlocks + 1;
 		try {
 			byte[] inodeBlock = new byte[512]; //one inodeBlock
-			byte[] inode = new byte[32];	   //one default inode
-			SysLib.int2bytes( 0, inode, 0 );
-            		SysLib.short2bytes( (short)0, inode, 4 );
-        		SysLib.short2bytes( (short)0, inode, 6 );
-			for( int i = 0; i < 11; i++ ) //magic 11: Inode.direct[].size
-        			SysLib.short2bytes( (short)-1, inode, (8 + (2 * i) ) );
+			Inode blank = new Inode( );	   //one default inode
+			blank.flag = 0;
 
-        		SysLib.short2bytes( (short)-1, inode, 30 );
-
-			for (int i = 0; i < 16; i++) //fill inodeBlock with default inodes
-				System.arraycopy( inode, 0, inodeBlock, i * 32, 32 );
+			for (int i = 0; i < perBlock; i++) //fill inodeBlock with default inodes
+				blank.toBytes( inodeBlock, Inode.offsetOf( ( short )i ) );
 			//writes inodeBlocks to propper disk blocks
 			for (int i = 1; i <= inodeBlocks; i++)
 				SysLib.rawwrite( i, inodeBlock );
 
-		//initializes all free blocks and sets up freeList
-		//first free block to next to last disk block
-		byte[] block = new byte[ 512 ];
-		for (int i = 0; i < 512; i++)
-			block[i] = 0;
-
-		for (int i = inodeBlocks; i < totalBlocks -2; i++) {
-			short next = ( short )( i + 1 );
-			SysLib.short2bytes( next, block, 0 ); //write next block ptr
-			SysLib.rawwrite( i, block ); //write block to disk
-		}
-		//last disk block
-		SysLib.short2bytes( (short)-1, block, 0 ); //write next block ptr
-		SysLib.rawwrite( totalBlocks -1, block );
+		//no free block is touched: everything past the inode
+		//blocks is free until freeHigh moves over it
 		return sync( );
 		}
 		catch( ArrayIndexOutOfBoundsException aiobe ) { return -1; }
 	}
 	// Write the disk's metadata to the 0 block on disk
 	public int sync () {
-		//write back totalBlocks, inodeBlocks, and freeList to disk
+		//write back totalBlocks, inodeBlocks, freeList and freeHigh to disk
 		try {
 			byte[] block = new byte[512];
 			SysLib.int2bytes( this.totalBlocks, block, 0 );
 			SysLib.int2bytes( this.inodeBlocks, block, 4 );
 			SysLib.int2bytes( this.freeList, block, 8 );
-			SysLib.int2bytes( this.lastFree, block, 12 );
+			SysLib.int2bytes( this.freeHigh, block, 12 );
 			SysLib.rawwrite( 0, block );
 		    }
 		catch ( ArrayIndexOutOfBoundsException aiobe) { return -1; }
 		return 0;
 	}
 
-	// Advances the freelist one block and returns the current free block
-	public int getFreeBlock( )
+	// Returns a free block, reusing a returned one if there is any and
+	// otherwise taking the next never used block, or -1 if the disk is
+	// full. A never used block needs no read: it is initialized by the
+	// caller's first write to it
+	public synchronized int getFreeBlock( )
 	{
-		//Dequeue the top block from the free list
-		int freed = freeList;
-		if ( freed == -1 )
-			return -1;
+		if ( freeList == -1 )
+			return ( freeHigh < totalBlocks ? freeHigh++ : -1 );
 
+		//Pop the top block off the returned block stack
+		int freed = freeList;
 		byte[] nextfreeblock = new byte[512];
 		SysLib.rawread( freeList, nextfreeblock );
-		Short next = new Short( SysLib.bytes2short( nextfreeblock, 0 ) );
-		// advance freeList
-		freeList = next.intValue( );
+		freeList = SysLib.bytes2short( nextfreeblock, 0 );
 		return freed;
 	}
 
+	// Takes 'count' blocks off the free list at once for a delayed
+	// write back, so a file's blocks are handed out together. They are
+	// one contiguous run from the never used region when it has room.
+	// Returns null, giving back anything taken, if there are not enough
+	public synchronized short[ ] getFreeBlocks( int count )
+	{
+		short[ ] blocks = new short[ count ];
+		if ( freeHigh + count <= totalBlocks )
+		{
+			for( int i = 0; i < count; i++ )
+				blocks[ i ] = ( short )freeHigh++;
+			return blocks;
+		}
+
+		for( int i = 0; i < count; i++ )
+		{
+			int blk = getFreeBlock( );
+			if( blk == -1 )
+			{
+				for( int j = 0; j < i; j++ )
+					returnBlock( blocks[ j ] );
+				return null;
+			}
+			blocks[ i ] = ( short )blk;
+		}
+		return blocks;
+	}
+
 	//Frees the block passed by the index and modifies the freeList
-	public int returnBlock( short blockNumber ) {
-		//Enqueue a given block to the end of the free list
-		if( !( blockNumber > inodeBlocks && blockNumber < totalBlocks ) )
+	public synchronized int returnBlock( short blockNumber ) {
+		if( !( blockNumber > inodeBlocks && blockNumber < freeHigh ) )
 			return -1;
-		byte[] last = new byte[512];
-		SysLib.rawread( lastFree, last ); //read next free Block
 
-		SysLib.short2bytes( (short)blockNumber, last, 0 ); //replace last 
-		SysLib.rawwrite( lastFree, last );
-		lastFree = blockNumber;
+		//the last block handed out just goes back to the unused region
+		if( blockNumber == freeHigh - 1 ) {
+			freeHigh--;
+			return 0;
+		}
+
+		//Push a given block onto the returned block stack
+		byte[] block = new byte[512];
+		SysLib.short2bytes( (short)freeList, block, 0 ); //write next block ptr
+		SysLib.rawwrite( blockNumber, block );
+		freeList = blockNumber;
 		return 0;
 	}
 	
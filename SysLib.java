@@ -1,4 +1,5 @@
 import java.util.*;
+import java.nio.ByteBuffer;
 
 public class SysLib {
     public static int exec( String args[] ) {
@@ -16,6 +17,12 @@ public class SysLib {
 				 Kernel.BOOT, 0, null );
     }
 
+    // boots with "name=value" options, see Kernel.bootOptions( )
+    public static int boot( String options[] ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.BOOT, 0, options );
+    }
+
     public static int exit( ) {
 	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.EXIT, 0, null );
@@ -82,6 +89,9 @@ public class SysLib {
     }
 
     public static int open( String fname, String mode ) {
+	for ( int i = 0; i < Kernel.MODES.length; i++ )
+	    if ( Kernel.MODES[i].equals( mode ) )
+		return Kernel.syscall( Kernel.OPEN, 0, i, 0, fname );
 	String[ ] s = { fname, mode };
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.OPEN, 0, s );
@@ -98,6 +108,25 @@ public class SysLib {
     }
 
 
+    // returns a second descriptor for the open file 'fd', the lowest
+    // one free; both share the file's seek pointer
+    public static int dup( int fd ) {
+        return Kernel.syscall( Kernel.DUP, fd, -1, 0, null );
+    }
+
+    // makes 'fd2' a second descriptor for the open file 'fd', closing
+    // whatever 'fd2' had open
+    public static int dup2( int fd, int fd2 ) {
+        return Kernel.syscall( Kernel.DUP, fd, fd2, 0, null );
+    }
+
+    // keeps the open file 'fd' from being inherited by threads exec'd
+    // from now on, until 'fd' is closed or reused
+    public static int cloexec( int fd ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CLOEXEC, fd, null );
+    }
+
     public static int close( int fd ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.CLOSE, fd, null );
@@ -109,9 +138,7 @@ public class SysLib {
     }
 
     public static int seek( int fd, int offset, int whence ) {
-	Integer[ ] ps = { new Integer( offset ), new Integer( whence ) };
-        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
-				 Kernel.SEEK, fd, ps );
+        return Kernel.syscall( Kernel.SEEK, fd, offset, whence, null );
     }
 
     public static int format( int files ) {
@@ -124,6 +151,104 @@ public class SysLib {
 				 Kernel.DELETE, 0, filename );
     }
 
+    // returns a view of the open file 'fd' whose pages are faulted in
+    // from the block cache on access, or null if 'fd' is not open; views
+    // of one file share its pages
+    public static MappedFile mmap( int fd ) {
+	MappedFile[ ] view = new MappedFile[ 1 ];
+	Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+			  Kernel.MMAP, fd, view );
+	return view[ 0 ];
+    }
+
+    public static int msync( MappedFile map ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.MSYNC, 0, map );
+    }
+
+    public static int munmap( MappedFile map ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.MUNMAP, 0, map );
+    }
+
+    // sets the calling thread's share under policy=lottery
+    public static int tickets( int n ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.SCHED, n, "tickets" );
+    }
+
+    // sets the calling thread's relative deadline under policy=edf,
+    // 0 for none
+    public static int deadline( int milliseconds ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.SCHED, milliseconds, "deadline" );
+    }
+
+    // appends a row of accounting per live thread to 'rows', laid out
+    // as in TCB.snapshot( ); returns the number of rows
+    public static int ps( Vector rows ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.PS, 0, rows );
+    }
+
+    // runs every operation queued on 'ring' in one system call; their
+    // completions are then reaped from the ring. Returns how many ran
+    public static int submit( IoRing ring ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.SUBMIT, 0, ring );
+    }
+
+    // appends a line per program exec has loaded to 'rows': its name,
+    // spawns, and average and worst spawn time in microseconds
+    public static int progstat( Vector rows ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.PROGSTAT, 0, rows );
+    }
+
+    // makes a pipe: fds[0] reads what is written to fds[1]
+    public static int pipe( int fds[] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.PIPE, 0, fds );
+    }
+
+    // returns shared memory segment 'name', made 'size' bytes long if
+    // it does not exist yet, or null
+    public static ByteBuffer shmget( String name, int size ) {
+	Object[] io = { name, null };
+	Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+			  Kernel.SHMGET, size, io );
+	return ( ByteBuffer )io[1];
+    }
+
+    public static int shmrm( String name ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.SHMRM, 0, name );
+    }
+
+    // fills in the kernel counters, Kernel.STAT_SYSCALLS and on, and
+    // returns how many there were room for
+    public static int stat( long counters[] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.STAT, 0, counters );
+    }
+
+    // appends a line per system call made so far to 'rows', "syscall",
+    // its name, count, and mean, median, 99th percentile and worst
+    // latency in microseconds of the calls sampled, see Metrics, then a
+    // line per gauge, "gauge", its name and value; returns the number
+    // of lines
+    public static int metrics( Vector rows ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.METRICS, 0, rows );
+    }
+
+    // writes the system calls kept by the trace= boot option to host
+    // file 'file'; returns how many, or -1 if none are kept
+    public static int trace( String file ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.TRACE, 0, file );
+    }
+
     public static String[] stringToArgs( String s ) {
 	StringTokenizer token = new StringTokenizer( s," " );
 	String[] progArgs = new String[ token.countTokens( ) ];
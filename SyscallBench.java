@@ -0,0 +1,114 @@
+//------------------------------------------------------------------
+// class SyscallBench, a threadOS user program that measures the cost
+// of a system call. For each of SEEK, READ, WRITE, CREAD and CWRITE it
+// makes the call many times on a scratch file or cache block and
+// prints the average time and the bytes allocated per call. Time a
+// thread spends preempted counts too, so run it alone, ideally with
+// the tickless boot option
+//
+// usage: SyscallBench [iterations]
+//------------------------------------------------------------------
+import java.lang.management.*;
+public class SyscallBench extends Thread
+{
+  private int iterations = 100000;
+
+  public SyscallBench( )
+  {
+  }
+
+  public SyscallBench( String[ ] args )
+  {
+    if( args.length > 0 )
+      iterations = Integer.parseInt( args[ 0 ] );
+  }
+
+  public void run( )
+  {
+    byte[ ] one = new byte[ 1 ];
+    byte[ ] block = new byte[ 512 ];
+    int fd = SysLib.open( "syscallbench", "w+" );
+    SysLib.write( fd, block );
+
+    SysLib.cout( "syscall     ns/call  bytes/call\n" );
+    for( int pass = 0; pass < 2; pass++ )   // the first pass warms up
+    {
+      boolean show = ( pass == 1 );
+      long[ ] start = new long[ 2 ];
+
+      mark( start );
+      for( int i = 0; i < iterations; i++ )
+        SysLib.seek( fd, i & 511, 0 );
+      report( show, "SEEK", start );
+
+      mark( start );
+      for( int i = 0; i < iterations; i++ )
+      {
+        SysLib.seek( fd, 0, 0 );
+        SysLib.read( fd, one );
+      }
+      report( show, "SEEK+READ", start );
+
+      mark( start );
+      for( int i = 0; i < iterations; i++ )
+      {
+        SysLib.seek( fd, 0, 0 );
+        SysLib.write( fd, one );
+      }
+      report( show, "SEEK+WRITE", start );
+
+      mark( start );
+      for( int i = 0; i < iterations; i++ )
+        SysLib.cread( 1, block );
+      report( show, "CREAD", start );
+
+      mark( start );
+      for( int i = 0; i < iterations; i++ )
+        SysLib.cwrite( 1, block );
+      report( show, "CWRITE", start );
+    }
+
+    SysLib.close( fd );
+    SysLib.delete( "syscallbench" );
+    SysLib.exit( );
+  }
+
+  // records the time and this thread's allocation so far
+  private void mark( long[ ] start )
+  {
+    start[ 1 ] = allocated( );
+    start[ 0 ] = System.nanoTime( );
+  }
+
+  private void report( boolean show, String name, long[ ] start )
+  {
+    long nanos = System.nanoTime( ) - start[ 0 ];
+    long bytes = ( start[ 1 ] < 0 ? -1 : allocated( ) - start[ 1 ] );
+    if( !show )
+      return;
+
+    String line = name;
+    while( line.length( ) < 10 )
+      line += " ";
+    SysLib.cout( line + pad( "" + nanos / iterations, 10 )
+                 + pad( bytes < 0 ? "n/a" : "" + bytes / iterations, 12 )
+                 + "\n" );
+  }
+
+  // bytes allocated by this thread, or -1 if the JVM cannot tell
+  private static long allocated( )
+  {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean( );
+    if( bean instanceof com.sun.management.ThreadMXBean )
+      return ( ( com.sun.management.ThreadMXBean )bean )
+        .getThreadAllocatedBytes( Thread.currentThread( ).getId( ) );
+    return -1;
+  }
+
+  private static String pad( String s, int width )
+  {
+    while( s.length( ) < width )
+      s = " " + s;
+    return s;
+  }
+}
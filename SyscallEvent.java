@@ -0,0 +1,52 @@
+// SyscallEvent, the JFR event for one threadOS system call. It is only
+// written while a flight recording that enables it is running, e.g.
+//   java -XX:StartFlightRecording=filename=threados.jfr ...
+// so tools such as JDK Mission Control can line up system calls with
+// what the JVM was doing. Otherwise the kernel's cost is reading the
+// enabled flag, which is kept up to date as recordings start and stop
+import jdk.jfr.*;
+@Name( "threados.Syscall" )
+@Label( "ThreadOS System Call" )
+@Category( "ThreadOS" )
+@StackTrace( false )
+public class SyscallEvent extends Event
+{
+	// true while some recording has this event enabled
+	static volatile boolean enabled = false;
+
+	static
+	{
+		FlightRecorder.addListener( new FlightRecorderListener( )
+		{
+			public void recorderInitialized( FlightRecorder recorder )
+			{
+				update( );
+			}
+
+			public void recordingStateChanged( Recording recording )
+			{
+				update( );
+			}
+		} );
+	}
+
+	private static void update( )
+	{
+		enabled = EventType.getEventType( SyscallEvent.class ).isEnabled( );
+	}
+
+	@Label( "Kernel" )
+	int kernel;
+
+	@Label( "System Call" )
+	String name;
+
+	@Label( "Thread Id" )
+	int tid;
+
+	@Label( "Parameter" )
+	int param;
+
+	@Label( "Result" )
+	int result;
+}
@@ -1,18 +1,61 @@
+import java.util.*;
+
 public class TCB {
     private Thread thread = null;
     private int tid = 0;
     private int pid = 0;
     private boolean terminated = false;
+    private volatile boolean dispatched = false; // holds the CPU (park mode)
+    private int cpu = 0;                          // virtual CPU last run on
+
+    // scheduling policy state, see SchedulingPolicy
+    private int level = 0;                        // MLFQ queue
+    private long vruntime = 0;                    // fair share CPU time
+    private int tickets = 100;                    // lottery tickets
+    private int deadline = 0;                     // EDF relative deadline
+    private long absoluteDeadline = Long.MAX_VALUE;
+    private long arrival = 0;
+
+    // accounting, in nanoseconds, kept by the scheduler and the kernel
+    private long runNanos = 0;          // time on a CPU, less blocked time
+    private long readyNanos = 0;        // time waiting in a run queue
+    private long ioNanos = 0;           // time waiting for the disk
+    private long sleepNanos = 0;        // time in sleep( ), join( ), cin( )
+    private long dispatches = 0;
+    private int demotions = 0;          // MLFQ moves to a lower queue
+    private long readySince = System.nanoTime( );
+    private long runSince = 0;          // on a CPU and not blocked since
+    private boolean onCpu = false;
+    private long waitSince = 0;         // in a blocking call since, or 0
+    private boolean sleeping = false;   // off the run queues in sleep( )
+    private boolean blocked = false;    // has blocked since dispatched
+    private boolean blocking = false;   // in Scheduler.blockThread( )
+    private boolean wakeupPending = false; // unblocked before blocking
     private int sleepTime = 0;
-    public FileTableEntry[] ftEnt = null; // added for the file system
+    private FileTableEntry[] ftEnt = null; // added for the file system
+    private BitSet fdUsed = null;          // descriptors in use
+    private BitSet fdCloseOnExec = null;   // not inherited by children
+    private int fdHint = 3;                // no free descriptor below this
+    public final static int MAX_FDS = 65536;
+    private TCB parent = null;          // null if not exec'd by a user thread
+    private boolean exited = false;     // has called exit( )
+    private int tidHolds;               // see release( )
+    private final int[] args = new int[2]; // see Kernel.syscall( )
+    private int syscallDepth = 0;       // system calls this thread is in
+    private final Console.Line consoleLine = new Console.Line( );
 
-    public TCB( Thread newThread, int myTid, int parentTid ) {
+    public TCB( Thread newThread, int myTid, TCB parentTcb ) {
 	thread = newThread;
 	tid = myTid;
-	pid = parentTid;
+	parent = parentTcb;
+	pid = ( parent != null ) ? parent.getTid( ) : -1;
 	terminated = false;
+	tidHolds = ( parent != null ) ? 2 : 1;
 
 	ftEnt = new FileTableEntry[32];    // added for the file system
+	fdUsed = new BitSet( );
+	fdUsed.set( 0, 3 );                // stdin, stdout and stderr
+	fdCloseOnExec = new BitSet( );
 
 	System.err.println( "threadOS: a new thread (thread=" + thread + 
 			    " tid=" + tid + 
@@ -31,6 +74,28 @@ public class TCB {
 	return pid;
     }
 
+    public synchronized TCB getParent( ) {
+	return parent;
+    }
+
+    // Set by the kernel once this thread has called exit( ), after which
+    // its children's exits no longer wake it
+    public synchronized void setExited( ) {
+	exited = true;
+    }
+
+    public synchronized boolean hasExited( ) {
+	return exited;
+    }
+
+    // A thread id stays in use until the thread has left the scheduler
+    // and, if it has a parent, has been joined or can no longer be, so
+    // a wakeup carrying it cannot be taken for a later thread's. Each
+    // calls release( ); it returns true to the last, which frees the id
+    public synchronized boolean release( ) {
+	return --tidHolds == 0;
+    }
+
     public synchronized boolean setTerminated( ) {
 	terminated = true;
 	return terminated;
@@ -40,24 +105,286 @@ public class TCB {
 	return terminated;
     }
 
+    // set by the scheduler when it hands this thread the CPU and cleared
+    // when it takes it back; read by the thread itself at its yield point
+    public void setDispatched( boolean d ) {
+	dispatched = d;
+    }
+
+    public boolean isDispatched( ) {
+	return dispatched;
+    }
+
+    public synchronized int getCpu( ) {
+	return cpu;
+    }
+
+    public synchronized void setCpu( int c ) {
+	cpu = c;
+    }
+
+    public synchronized int getLevel( ) {
+	return level;
+    }
+
+    public synchronized void setLevel( int l ) {
+	level = l;
+    }
+
+    public synchronized long getVruntime( ) {
+	return vruntime;
+    }
+
+    public synchronized void setVruntime( long v ) {
+	vruntime = v;
+    }
+
+    public synchronized int getTickets( ) {
+	return tickets;
+    }
+
+    public synchronized void setTickets( int t ) {
+	tickets = ( t < 1 ? 1 : t );
+    }
+
+    public synchronized int getDeadline( ) {
+	return deadline;
+    }
+
+    public synchronized void setDeadline( int d ) {
+	deadline = ( d < 0 ? 0 : d );
+    }
+
+    public synchronized long getAbsoluteDeadline( ) {
+	return absoluteDeadline;
+    }
+
+    public synchronized void setAbsoluteDeadline( long d ) {
+	absoluteDeadline = d;
+    }
+
+    public synchronized long getArrival( ) {
+	return arrival;
+    }
+
+    public synchronized void setArrival( long a ) {
+	arrival = a;
+    }
+
+    // The primitive system call arguments beyond the first. Only this
+    // thread reads or writes them, from inside its own system calls
+    public int[] getArgs( ) {
+	return args;
+    }
+
+    // How deep this thread is in system calls: 0 in user code, 1 in a
+    // system call, more in one the kernel makes on its behalf, such as
+    // the disk reads of Cache.read( ). Likewise only this thread's own
+    public int getSyscallDepth( ) {
+	return syscallDepth;
+    }
+
+    public void enterSyscall( ) {
+	syscallDepth++;
+    }
+
+    public void leaveSyscall( ) {
+	syscallDepth--;
+    }
+
+    // Console output this thread has yet to hand over. Likewise only
+    // touched from inside this thread's own system calls
+    public Console.Line getConsoleLine( ) {
+	return consoleLine;
+    }
+
+    // Called by the dispatcher as this thread is given a CPU at 'now',
+    // ending the wait in the run queue that started at stopRun( )
+    public synchronized void startRun( long now ) {
+	readyNanos += now - readySince;
+	dispatches++;
+	blocked = false;
+	onCpu = true;
+	runSince = now;
+    }
+
+    // Called by the dispatcher when this thread's slice ends at 'now'.
+    // A thread keeps its CPU while it blocks in a system call, so time
+    // it spends blocked is not counted as run time
+    public synchronized void stopRun( long now ) {
+	if ( waitSince == 0 )
+	    runNanos += now - runSince;
+	onCpu = false;
+	readySince = now;
+    }
+
+    // Called by the kernel around a system call that blocks, the disk
+    // queue or sleep( ), join( ) and console input. A wait inside a
+    // wait, as when join( ) leaves the CPU, is part of the outer one
+    public synchronized void beginWait( long now ) {
+	if ( waitSince != 0 )
+	    return;
+	if ( onCpu )
+	    runNanos += now - runSince;
+	waitSince = now;
+	blocked = true;
+    }
+
+    public synchronized void endWait( long now, boolean disk ) {
+	if ( waitSince == 0 )
+	    return;
+	if ( disk )
+	    ioNanos += now - waitSince;
+	else
+	    sleepNanos += now - waitSince;
+	waitSince = 0;
+	runSince = now;
+    }
+
+    // Set while this thread is asleep off the run queues. It becomes
+    // ready again, at 'now', when its timer fires
+    public synchronized void setSleeping( boolean s, long now ) {
+	sleeping = s;
+	if ( !s )
+	    readySince = now;
+    }
+
+    public synchronized boolean isSleeping( ) {
+	return sleeping;
+    }
+
+    // Handshake between Scheduler.blockThread( ) and unblockThread( ).
+    // block( ) returns false, and the thread must not stay blocked, if
+    // an unblock( ) got here first; unblock( ) returns true if the
+    // thread is blocked and is now the caller's to wake
+    public synchronized boolean block( ) {
+	if ( wakeupPending ) {
+	    wakeupPending = false;
+	    return false;
+	}
+	blocking = true;
+	return true;
+    }
+
+    public synchronized boolean unblock( ) {
+	if ( blocking ) {
+	    blocking = false;
+	    return true;
+	}
+	wakeupPending = true;
+	return false;
+    }
+
+    // true if this thread has blocked since it was last dispatched,
+    // which MLFQ takes as a sign it is interactive or I/O bound
+    public synchronized boolean wasBlocked( ) {
+	return blocked;
+    }
+
+    // Called by MLFQ once it has moved this thread up for blocking, so
+    // a requeue or a move to another CPU does not move it up again
+    public synchronized void clearBlocked( ) {
+	blocked = false;
+    }
+
+    public synchronized void countDemotion( ) {
+	demotions++;
+    }
+
+    // Layout of the rows returned by snapshot( ) and SysLib.ps( )
+    public final static int STAT_TID = 0;
+    public final static int STAT_PID = 1;
+    public final static int STAT_CPU = 2;
+    public final static int STAT_LEVEL = 3;
+    public final static int STAT_DISPATCHES = 4;
+    public final static int STAT_DEMOTIONS = 5;
+    public final static int STAT_RUN = 6;     // nanoseconds
+    public final static int STAT_READY = 7;   // nanoseconds
+    public final static int STAT_IO = 8;      // nanoseconds
+    public final static int STAT_SLEEP = 9;   // nanoseconds
+    public final static int STAT_SIZE = 10;
+
+    // Copies this thread's accounting into a new row. A thread that is
+    // waiting in a run queue or running right now is charged up to 'now'
+    public synchronized long[] snapshot( long now ) {
+	long[] row = new long[STAT_SIZE];
+	row[STAT_TID] = tid;
+	row[STAT_PID] = pid;
+	row[STAT_CPU] = cpu;
+	row[STAT_LEVEL] = level;
+	row[STAT_DISPATCHES] = dispatches;
+	row[STAT_DEMOTIONS] = demotions;
+	row[STAT_RUN] = runNanos;
+	row[STAT_READY] = readyNanos;
+	row[STAT_IO] = ioNanos;
+	row[STAT_SLEEP] = sleepNanos;
+	if ( onCpu && waitSince == 0 )
+	    row[STAT_RUN] += now - runSince;
+	else if ( !onCpu && !sleeping )
+	    row[STAT_READY] += now - readySince;
+	return row;
+    }
+
     // added for the file system
+    // Gives 'entry' the lowest free descriptor. No descriptor below
+    // fdHint is free, so the search starts there and is usually over
+    // at once. The table doubles when it is full, up to MAX_FDS
     public synchronized int getFd( FileTableEntry entry ) {
 	if ( entry == null )
 	    return -1;
-	for ( int i = 3; i < 32; i++ ) {
-	    if ( ftEnt[i] == null ) {
-		ftEnt[i] = entry;
-		return i;
-	    }
+	int fd = fdUsed.nextClearBit( fdHint );
+	if ( fd >= MAX_FDS )
+	    return -1;
+	setFd( fd, entry );
+	fdHint = fd + 1;
+	return fd;
+    }
+
+    // Puts 'entry' at descriptor 'fd', for dup2( ), and returns the
+    // entry that was there, which the caller must close. An entry at
+    // STDIN, STDOUT or STDERR takes the console's place until closed
+    public synchronized FileTableEntry setFd( int fd, FileTableEntry entry ) {
+	if ( fd < 0 || fd >= MAX_FDS )
+	    return null;
+	if ( fd >= ftEnt.length ) {
+	    int size = ftEnt.length;
+	    while ( size <= fd )
+		size *= 2;
+	    ftEnt = Arrays.copyOf( ftEnt, Math.min( size, MAX_FDS ) );
 	}
-	return -1;
+	FileTableEntry oldEnt = ftEnt[fd];
+	ftEnt[fd] = entry;
+	fdUsed.set( fd );
+	fdCloseOnExec.clear( fd );
+	return oldEnt;
+    }
+
+    // Keeps open descriptor 'fd' from being inherited by the threads
+    // this one execs, until it is closed or reused. Returns false if
+    // 'fd' is not open
+    public synchronized boolean setCloseOnExec( int fd ) {
+	if ( getFtEnt( fd ) == null )
+	    return false;
+	fdCloseOnExec.set( fd );
+	return true;
     }
 
     // added for the file system
+    // Descriptors 0 to 2 go back to the console rather than being freed
     public synchronized FileTableEntry returnFd( int fd ) {
-	if ( fd >= 3 && fd < 32 ) {
+	if ( fd >= 0 && fd < 3 ) {
+	    FileTableEntry oldEnt = ftEnt[fd];
+	    ftEnt[fd] = null;
+	    fdCloseOnExec.clear( fd );
+	    return oldEnt;
+	}
+	else if ( fd >= 3 && fd < ftEnt.length ) {
 	    FileTableEntry oldEnt = ftEnt[fd];
 	    ftEnt[fd] = null;
+	    fdUsed.clear( fd );
+	    fdCloseOnExec.clear( fd );
+	    if ( fd < fdHint )
+		fdHint = fd;
 	    return oldEnt;
 	}
 	else
@@ -65,10 +392,41 @@ public class TCB {
     }
 
     // added for the file systme
+    // null for a descriptor 0 to 2 that is the console
     public synchronized FileTableEntry getFtEnt( int fd ) {
-	if ( fd >= 3 && fd < 32 )
+	if ( fd >= 0 && fd < ftEnt.length )
 	    return ftEnt[fd];
 	else
 	    return null;
     }
+
+    // A copy of this thread's descriptor table, for a child to inherit,
+    // without the descriptors marked close on exec
+    public synchronized FileTableEntry[] getFds( ) {
+	FileTableEntry[] fds = Arrays.copyOf( ftEnt, fdUsed.length( ) );
+	for ( int fd = fdCloseOnExec.nextSetBit( 0 ); fd >= 0 && fd < fds.length;
+	      fd = fdCloseOnExec.nextSetBit( fd + 1 ) )
+	    fds[fd] = null;
+	return fds;
+    }
+
+    // Starts this thread with its parent's descriptors. Called before
+    // it first runs, once the kernel has counted the extra references
+    public synchronized void inheritFds( FileTableEntry[] fds ) {
+	for ( int fd = 0; fd < fds.length; fd++ )
+	    if ( fds[fd] != null )
+		setFd( fd, fds[fd] );
+    }
+
+    // Empties the descriptor table, returning what was open, for the
+    // kernel to close when this thread exits
+    public synchronized FileTableEntry[] returnAllFds( ) {
+	FileTableEntry[] open = Arrays.copyOf( ftEnt, fdUsed.length( ) );
+	for ( int fd = 0; fd < ftEnt.length; fd++ )
+	    ftEnt[fd] = null;
+	fdCloseOnExec.clear( );
+	fdUsed.clear( 3, Math.max( 3, fdUsed.length( ) ) );
+	fdHint = 3;
+	return open;
+    }
 }
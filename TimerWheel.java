@@ -0,0 +1,168 @@
+//------------------------------------------------------------------
+// class TimerWheel, the threadOS timer for sleeping threads. It is a
+// hierarchical timing wheel: four levels of 64 slots, each level's
+// slot spanning 64 ticks of the level below. A timer is filed in the
+// lowest level whose span covers it and moves down a level each time
+// the wheel below wraps, so adding a timer and firing one both take
+// constant time however many threads are asleep. Timers further out
+// than the wheel reaches wait in its last slot and are filed again
+//
+// The wheel runs on its own thread, which ticks only while there
+// are timers pending and otherwise waits for one to be added
+//------------------------------------------------------------------
+public class TimerWheel extends Thread
+{
+  private static final int LEVELS = 4;
+  private static final int BITS = 6;
+  private static final int SLOTS = 1 << BITS;
+  private static final long SPAN = 1L << ( BITS * LEVELS );
+
+  private Scheduler scheduler;   // told when a sleeping thread's time is up
+  private Timer[ ][ ] wheel;
+  private int tickMillis;
+  private long base;             // System.nanoTime( ) at tick 0
+  private long now;              // the last tick processed
+  private int pending;           // timers in the wheel
+
+  // one sleeping thread, linked into a slot
+  private static class Timer
+  {
+    long tick;
+    TCB tcb;
+    Timer next;
+  }
+
+  //----------------------------------------------------------------
+  // Creates a wheel that ticks every 'tickMillis' milliseconds and
+  // hands expired threads back to 'scheduler'
+  public TimerWheel( Scheduler scheduler, int tickMillis )
+  {
+    this.scheduler = scheduler;
+    this.wheel = new Timer[ LEVELS ][ SLOTS ];
+    this.tickMillis = ( tickMillis < 1 ? 1 : tickMillis );
+    this.base = System.nanoTime( );
+    this.now = 0;
+    this.pending = 0;
+    setName( "threadOS timer" );
+    setDaemon( true );
+  }
+
+  //----------------------------------------------------------------
+  // Sets a timer to wake 'tcb' after 'millis' milliseconds, rounded
+  // up to a whole tick
+  // pre : 'tcb' is asleep and off the run queues
+  // post: Scheduler.wakeThread( tcb ) is called once the time is up
+  public synchronized void schedule( TCB tcb, int millis )
+  {
+    // an empty wheel has nothing to catch up on
+    if( pending == 0 )
+      now = elapsedTicks( );
+
+    Timer t = new Timer( );
+    t.tcb = tcb;
+    t.tick = elapsedTicks( ) + ( millis + tickMillis - 1 ) / tickMillis;
+    file( t );
+    pending++;
+    notify( );
+  }
+
+  //----------------------------------------------------------------
+  // Ticks the wheel up to the current time, waking every thread
+  // whose timer has expired, then waits for the next tick
+  public void run( )
+  {
+    while( true )
+    {
+      Timer expired = null;
+      synchronized( this )
+      {
+        while( pending == 0 )
+        {
+          try { wait( ); }
+          catch( InterruptedException ie ) { }
+        }
+
+        long target = elapsedTicks( );
+        while( now < target )
+          expired = advance( expired );
+      }
+
+      // wake the threads outside the lock, as that takes their CPU's
+      for( ; expired != null; expired = expired.next )
+        scheduler.wakeThread( expired.tcb );
+
+      try { Thread.sleep( tickMillis ); }
+      catch( InterruptedException ie ) { }
+    }
+  }
+
+  //----------------------------------------------------------------
+  // Moves the wheel on one tick. Every level whose wheel below has
+  // just wrapped gives up the slot that now comes due, highest level
+  // first, and then the timers in level 0's current slot expire
+  // pre : The caller holds the lock
+  // post: The expired timers are pushed onto 'expired', which is
+  //       returned
+  private Timer advance( Timer expired )
+  {
+    now++;
+    for( int level = LEVELS - 1; level > 0; level-- )
+    {
+      if( ( now & ( ( 1L << ( BITS * level ) ) - 1 ) ) != 0 )
+        continue;
+
+      int slot = ( int )( ( now >> ( BITS * level ) ) & ( SLOTS - 1 ) );
+      Timer t = wheel[ level ][ slot ];
+      wheel[ level ][ slot ] = null;
+      while( t != null )
+      {
+        Timer next = t.next;
+        file( t );
+        t = next;
+      }
+    }
+
+    int slot = ( int )( now & ( SLOTS - 1 ) );
+    Timer t = wheel[ 0 ][ slot ];
+    wheel[ 0 ][ slot ] = null;
+    while( t != null )
+    {
+      Timer next = t.next;
+      if( t.tick > now )
+        file( t );           // was beyond the wheel's reach
+      else
+      {
+        t.next = expired;
+        expired = t;
+        pending--;
+      }
+      t = next;
+    }
+    return expired;
+  }
+
+  //----------------------------------------------------------------
+  // Links a timer into the slot for its tick, on the lowest level
+  // that reaches that far. A timer that is already due goes in the
+  // next tick's slot
+  // pre : The caller holds the lock
+  private void file( Timer t )
+  {
+    long tick = Math.max( t.tick, now + 1 );
+    tick = Math.min( tick, now + SPAN - 1 );
+    long delta = tick - now;
+
+    int level = 0;
+    while( level < LEVELS - 1 && delta >= ( 1L << ( BITS * ( level + 1 ) ) ) )
+      level++;
+
+    int slot = ( int )( ( tick >> ( BITS * level ) ) & ( SLOTS - 1 ) );
+    t.next = wheel[ level ][ slot ];
+    wheel[ level ][ slot ] = t;
+  }
+
+  private long elapsedTicks( )
+  {
+    return ( System.nanoTime( ) - base ) / ( tickMillis * 1000000L );
+  }
+}
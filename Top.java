@@ -0,0 +1,181 @@
+//------------------------------------------------------------------
+// class Top, a threadOS user program that shows which threads are
+// using the CPUs. Every interval it takes a snapshot of the
+// scheduler's per-thread accounting and prints, for each thread,
+// its share of CPU time over the interval along with its totals of
+// run, ready queue, disk wait and sleep time, dispatches and MLFQ
+// level
+//
+// With -p it instead prints, once, every program exec has loaded
+// with its number of spawns and average and worst spawn time
+//
+// With -m it instead prints, once, every system call made so far with
+// its count and mean, median, 99th percentile and worst latency of
+// the calls sampled, then the kernel's gauges: threads waiting on the
+// I/O and wait queues, each CPU's run queue and cached blocks
+//
+// usage: Top [-d milliseconds] [-n iterations] [-p] [-m]
+//        "top", "ps", "progs" and "metrics" in the shell run this
+//        program
+//------------------------------------------------------------------
+import java.util.*;
+public class Top extends Thread
+{
+  private int delay = 1000;       // milliseconds between snapshots
+  private int iterations = 5;
+  private boolean programs = false;
+  private boolean metrics = false;
+
+  public Top( )
+  {
+  }
+
+  public Top( String[ ] args )
+  {
+    for( int i = 0; i < args.length; i++ )
+    {
+      if( args[ i ].equals( "-p" ) )
+        programs = true;
+      else if( args[ i ].equals( "-m" ) )
+        metrics = true;
+      else if( args[ i ].equals( "-d" ) && i + 1 < args.length )
+        delay = Integer.parseInt( args[ ++i ] );
+      else if( args[ i ].equals( "-n" ) && i + 1 < args.length )
+        iterations = Integer.parseInt( args[ ++i ] );
+    }
+  }
+
+  public void run( )
+  {
+    if( programs )
+    {
+      showPrograms( );
+      SysLib.exit( );
+      return;
+    }
+    if( metrics )
+    {
+      showMetrics( );
+      SysLib.exit( );
+      return;
+    }
+
+    HashMap<Long, Long> lastRun = runTimes( );
+    long lastTime = System.nanoTime( );
+
+    for( int n = 0; n < iterations; n++ )
+    {
+      SysLib.sleep( delay );
+
+      Vector rows = new Vector( );
+      SysLib.ps( rows );
+      long now = System.nanoTime( );
+      long elapsed = Math.max( now - lastTime, 1 );
+
+      StringBuffer out = new StringBuffer( );
+      out.append( "  tid  pid cpu lvl   %cpu    run(ms)  ready(ms)"
+                  + "     io(ms)  sleep(ms)  dispatch demote\n" );
+      HashMap<Long, Long> thisRun = new HashMap<Long, Long>( );
+      for( int i = 0; i < rows.size( ); i++ )
+      {
+        long[ ] row = ( long[ ] )rows.elementAt( i );
+        long tid = row[ TCB.STAT_TID ];
+        Long before = lastRun.get( tid );
+        long ran = row[ TCB.STAT_RUN ] - ( before != null ? before : 0 );
+        thisRun.put( tid, row[ TCB.STAT_RUN ] );
+
+        out.append( pad( tid, 5 ) + pad( row[ TCB.STAT_PID ], 5 )
+                    + pad( row[ TCB.STAT_CPU ], 4 )
+                    + pad( row[ TCB.STAT_LEVEL ], 4 )
+                    + pad( ( 1000 * ran / elapsed ) / 10 + "."
+                           + ( 1000 * ran / elapsed ) % 10, 7 )
+                    + pad( row[ TCB.STAT_RUN ] / 1000000, 11 )
+                    + pad( row[ TCB.STAT_READY ] / 1000000, 11 )
+                    + pad( row[ TCB.STAT_IO ] / 1000000, 11 )
+                    + pad( row[ TCB.STAT_SLEEP ] / 1000000, 11 )
+                    + pad( row[ TCB.STAT_DISPATCHES ], 10 )
+                    + pad( row[ TCB.STAT_DEMOTIONS ], 7 ) + "\n" );
+      }
+      SysLib.cout( out.toString( ) );
+      lastRun = thisRun;
+      lastTime = now;
+    }
+    SysLib.exit( );
+  }
+
+  // prints the spawn statistics of every loaded program
+  private static void showPrograms( )
+  {
+    Vector rows = new Vector( );
+    SysLib.progstat( rows );
+
+    StringBuffer out = new StringBuffer( );
+    out.append( "program               spawns   avg(us)   max(us)\n" );
+    for( int i = 0; i < rows.size( ); i++ )
+    {
+      StringTokenizer st = new StringTokenizer( ( String )rows.elementAt( i ) );
+      String name = st.nextToken( );
+      while( name.length( ) < 18 )
+        name += " ";
+      out.append( name + pad( st.nextToken( ), 10 ) + pad( st.nextToken( ), 10 )
+                  + pad( st.nextToken( ), 10 ) + "\n" );
+    }
+    SysLib.cout( out.toString( ) );
+  }
+
+  // prints the latencies of every system call made so far, then the
+  // kernel's gauges
+  private static void showMetrics( )
+  {
+    Vector rows = new Vector( );
+    SysLib.metrics( rows );
+
+    StringBuffer out = new StringBuffer( );
+    out.append( "syscall        count  mean(us)   p50(us)   p99(us)"
+                + "   max(us)\n" );
+    StringBuffer gauges = new StringBuffer( );
+    for( int i = 0; i < rows.size( ); i++ )
+    {
+      StringTokenizer st = new StringTokenizer( ( String )rows.elementAt( i ) );
+      String kind = st.nextToken( );
+      String name = st.nextToken( );
+      while( name.length( ) < 10 )
+        name += " ";
+      if( kind.equals( "gauge" ) )
+      {
+        gauges.append( name + pad( st.nextToken( ), 10 ) + "\n" );
+        continue;
+      }
+      out.append( name + pad( st.nextToken( ), 10 ) + pad( st.nextToken( ), 10 )
+                  + pad( st.nextToken( ), 10 ) + pad( st.nextToken( ), 10 )
+                  + pad( st.nextToken( ), 10 ) + "\n" );
+    }
+    out.append( "gauge          value\n" );
+    out.append( gauges );
+    SysLib.cout( out.toString( ) );
+  }
+
+  // the run time so far of every thread, by thread id, as a baseline
+  // for the first interval
+  private static HashMap<Long, Long> runTimes( )
+  {
+    HashMap<Long, Long> times = new HashMap<Long, Long>( );
+    Vector rows = new Vector( );
+    SysLib.ps( rows );
+    for( int i = 0; i < rows.size( ); i++ )
+    {
+      long[ ] row = ( long[ ] )rows.elementAt( i );
+      times.put( row[ TCB.STAT_TID ], row[ TCB.STAT_RUN ] );
+    }
+    return times;
+  }
+
+  // right-aligns 'value' in a field 'width' characters wide
+  private static String pad( Object value, int width )
+  {
+    String s = String.valueOf( value );
+    while( s.length( ) < width )
+      s = " " + s;
+    return s;
+  }
+}
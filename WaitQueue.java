@@ -0,0 +1,159 @@
+// WaitQueue, where a thread sleeps in SysLib.join( ) until one of its
+// children exits. Conditions are thread ids, and a wakeup carries the
+// id of the child that exited. A wakeup that arrives before its parent
+// joins is kept until the parent does, or exits; the kernel keeps a
+// child's id from being reused until then.
+//
+// Unlike a SyncQueue it is not sized to the maximum thread count up
+// front: a condition only has a slot while a thread is waiting on it
+// or a wakeup for it is pending. Sleeping uses a Condition rather than
+// Object.wait( ), so a waiting virtual thread does not pin its carrier.
+// Given the scheduler, a user thread waits off its CPU instead, with
+// Scheduler.blockThread( ), so a shell waiting for a pipeline does not
+// hold up the pipeline for the rest of its slice
+import java.util.*;
+import java.util.concurrent.locks.*;
+public class WaitQueue
+{
+	private final ReentrantLock lock = new ReentrantLock( );
+	private final HashMap<Integer, Slot> slots = new HashMap<Integer, Slot>( );
+	private final Scheduler scheduler;  // null to wait on the CPU
+
+	// the threads waiting on one condition and the wakeups for it
+	private class Slot
+	{
+		final Condition ready = lock.newCondition( );
+		final Vector<Integer> tids = new Vector<Integer>( );
+		final Vector<TCB> blocked = new Vector<TCB>( ); // off their CPU
+		int waiters = 0;
+	}
+
+	public WaitQueue( )
+	{
+		this( null );
+	}
+
+	public WaitQueue( Scheduler scheduler )
+	{
+		this.scheduler = scheduler;
+	}
+
+	// Sleeps until a wakeup for 'condition' is available and returns
+	// the thread id it carries
+	public int enqueueAndSleep( int condition )
+	{
+		lock.lock( );
+		try
+		{
+			Slot slot = slot( condition );
+			slot.waiters++;
+			TCB myTcb = ( scheduler == null ? null : scheduler.getMyTcb( ) );
+			while( slot.tids.isEmpty( ) )
+			{
+				if( myTcb == null )
+				{
+					slot.ready.awaitUninterruptibly( );
+					continue;
+				}
+				slot.blocked.add( myTcb );
+				lock.unlock( );
+				scheduler.blockThread( myTcb );
+				lock.lock( );
+				slot.blocked.remove( myTcb );
+			}
+			slot.waiters--;
+
+			int tid = slot.tids.remove( 0 );
+			release( condition, slot );
+			return tid;
+		}
+		finally
+		{
+			lock.unlock( );
+		}
+	}
+
+	// Wakes one thread sleeping on 'condition', handing it 'tid'
+	public void dequeueAndWakeup( int condition, int tid )
+	{
+		TCB waiter = null;
+		lock.lock( );
+		try
+		{
+			Slot slot = slot( condition );
+			slot.tids.add( tid );
+			slot.ready.signal( );
+			if( !slot.blocked.isEmpty( ) )
+				waiter = slot.blocked.remove( 0 );
+		}
+		finally
+		{
+			lock.unlock( );
+		}
+		if( waiter != null )
+			scheduler.unblockThread( waiter );
+	}
+
+	public void dequeueAndWakeup( int condition )
+	{
+		dequeueAndWakeup( condition, 0 );
+	}
+
+	// The number of threads waiting for a child
+	public int waiting( )
+	{
+		lock.lock( );
+		try
+		{
+			int n = 0;
+			for( Slot slot : slots.values( ) )
+				n += slot.waiters;
+			return n;
+		}
+		finally
+		{
+			lock.unlock( );
+		}
+	}
+
+	// Drops any wakeups still pending for 'condition', so a thread id
+	// that is reused does not inherit its previous owner's children.
+	// Returns the thread ids they carried
+	public Vector<Integer> forget( int condition )
+	{
+		lock.lock( );
+		try
+		{
+			Vector<Integer> dropped = new Vector<Integer>( );
+			Slot slot = slots.get( condition );
+			if( slot != null )
+			{
+				dropped.addAll( slot.tids );
+				slot.tids.clear( );
+				release( condition, slot );
+			}
+			return dropped;
+		}
+		finally
+		{
+			lock.unlock( );
+		}
+	}
+
+	private Slot slot( int condition )
+	{
+		Slot slot = slots.get( condition );
+		if( slot == null )
+		{
+			slot = new Slot( );
+			slots.put( condition, slot );
+		}
+		return slot;
+	}
+
+	private void release( int condition, Slot slot )
+	{
+		if( slot.waiters == 0 && slot.tids.isEmpty( ) )
+			slots.remove( condition );
+	}
+}